@@ -0,0 +1,144 @@
+package org.fitchfamily.android.dejavu;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cache tests against a real database on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CacheTest {
+    private static final String DATABASE = "cache-test.db";
+
+    // Two emitters per stripe.
+    private static final int CAPACITY = 16;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DATABASE);
+    }
+
+    private static List<RfIdentification> ids(int n) {
+        List<RfIdentification> rslt = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            rslt.add(new RfIdentification(String.format(Locale.US, "02:00:00:00:%02x:%02x",
+                    i >> 8, i & 0xff), EmitterType.WLAN_24GHZ));
+        return rslt;
+    }
+
+    @Test
+    public void getAllLargerThanStripeKeepsChanges() {
+        List<RfIdentification> ids = ids(200);
+        Position gps = new Position(47.6, -122.3, 5.0f, 0, 0, 1);
+
+        Cache cache = new Cache(context, DATABASE, CAPACITY, false, new Metrics());
+        Map<RfIdentification, RfEmitter> emitters = cache.getAll(ids);
+        assertEquals(ids.size(), emitters.size());
+
+        // None of the emitters handed out may have been evicted.
+        Map<RfIdentification, RfEmitter> again = cache.getAll(ids);
+        for (RfIdentification id : ids)
+            assertSame(emitters.get(id), again.get(id));
+
+        for (RfEmitter e : emitters.values())
+            e.updateLocation(gps);
+        cache.sync();
+        assertTrue(cache.getSize() <= CAPACITY);
+        assertEquals(0, cache.getPinned());
+        cache.close();
+
+        Database db = new Database(context, DATABASE, new Metrics());
+        try {
+            Map<RfIdentification, RfEmitter> saved = db.getEmitters(ids);
+            assertEquals(ids.size(), saved.size());
+            for (RfEmitter e : saved.values())
+                assertEquals(gps.lat, e.getLat(), 1.0e-6);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void trustChangeAfterLargeGetAllIsWritten() {
+        List<RfIdentification> ids = ids(100);
+        Position gps = new Position(47.6, -122.3, 5.0f, 0, 0, 1);
+
+        Cache cache = new Cache(context, DATABASE, CAPACITY, false, new Metrics());
+        for (RfEmitter e : cache.getAll(ids).values())
+            e.updateLocation(gps);
+        cache.sync();
+
+        // As at the end of a period: load more emitters than a stripe holds, then change them.
+        Map<RfIdentification, RfEmitter> emitters = cache.getAll(ids);
+        long before = emitters.get(ids.get(0)).getTrust();
+        for (RfEmitter e : emitters.values())
+            e.incrementTrust();
+        long after = emitters.get(ids.get(0)).getTrust();
+        assertTrue(after > before);
+        cache.sync();
+        cache.close();
+
+        Database db = new Database(context, DATABASE, new Metrics());
+        try {
+            for (RfEmitter e : db.getEmitters(ids).values())
+                assertEquals(after, e.getTrust());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void prefetchLoadsNearestAndKeepsPinned() {
+        List<RfIdentification> ids = ids(100);
+
+        // A line of emitters running north, about 11 meters apart.
+        Cache cache = new Cache(context, DATABASE, CAPACITY, false, new Metrics());
+        Map<RfIdentification, RfEmitter> emitters = cache.getAll(ids);
+        for (int i = 0; i < ids.size(); i++)
+            emitters.get(ids.get(i)).updateLocation(new Position(47.6 + i * 0.0001, -122.3, 5.0f, 0, 0, 1));
+        cache.sync();
+        cache.close();
+
+        // Room for the nearest emitter to stay after the prefetch fills its stripe.
+        cache = new Cache(context, DATABASE, 4 * CAPACITY, false, new Metrics());
+        List<RfIdentification> held = ids.subList(0, 4);
+        Map<RfIdentification, RfEmitter> pinned = cache.getAll(held);
+
+        BoundingBox bb = new BoundingBox();
+        bb.update(47.59, -122.31);
+        bb.update(47.62, -122.29);
+        // More emitters in the area than half the cache, so not loaded in full.
+        assertFalse(cache.prefetch(bb, 47.6 + 50 * 0.0001, -122.3));
+
+        Map<RfIdentification, RfEmitter> again = cache.getAll(held);
+        for (RfIdentification id : held)
+            assertSame(pinned.get(id), again.get(id));
+
+        // The emitter nearest the point was loaded.
+        long hits = cache.getHits();
+        cache.getAll(ids.subList(50, 51));
+        assertEquals(hits + 1, cache.getHits());
+        cache.close();
+    }
+}
@@ -0,0 +1,141 @@
+package org.fitchfamily.android.dejavu;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A change the writer fails to write must leave nothing of itself in the database,
+ * and must not keep the other changes from being written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseWriterRollbackTest {
+    private static final String DATABASE = "writer-test.db";
+
+    // Short enough that all the retries of a failing change take well under a second.
+    private static final long WRITE_DELAY_MS = 10;
+
+    private Context context;
+
+    /**
+     * A database where inserting some emitters always fails.
+     */
+    private class FailingDatabase extends Database {
+        volatile RfIdentification failing;
+
+        FailingDatabase(Metrics metrics) {
+            super(context, DATABASE, metrics);
+        }
+
+        @Override
+        public void insert(RfEmitter emitter) {
+            if (emitter.getRfIdent().equals(failing))
+                throw new IllegalStateException("insert failed");
+            super.insert(emitter);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DATABASE);
+    }
+
+    private static RfEmitter emitter(int n, double lat) {
+        RfEmitter e = new RfEmitter(EmitterType.WLAN_24GHZ, "02:00:00:00:00:0" + n);
+        e.updateLocation(new Position(lat, -122.3, 5.0f, 0, 0, 1));
+        return e;
+    }
+
+    private static void waitForWrites(DatabaseWriter writer) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (writer.getQueued() > 0) {
+            assertTrue("writer still has " + writer.getQueued() + " queued",
+                    System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void failedChangeIsRolledBack() throws InterruptedException {
+        RfEmitter e = emitter(1, 47.6);
+        Metrics metrics = new Metrics();
+        FailingDatabase db = new FailingDatabase(metrics);
+        try {
+            DatabaseWriter writer = new DatabaseWriter(db, metrics, WRITE_DELAY_MS);
+            writer.insert(e);
+            waitForWrites(writer);
+            assertEquals(1, writer.getCommits());
+
+            // Dropped then inserted again is a drop followed by an insert, in one transaction.
+            db.failing = e.getRfIdent();
+            writer.drop(e);
+            writer.insert(emitter(1, 48.6));
+            // Closing writes the change, which fails, and gives up on it.
+            writer.close();
+            assertEquals(1, writer.getCommits());
+            assertEquals(1, metrics.counter("writer.dropped").get());
+
+            // The drop was rolled back along with the insert.
+            Map<RfIdentification, RfEmitter> saved = db.getEmitters(Collections.singletonList(e.getRfIdent()));
+            assertEquals(1, saved.size());
+            assertEquals(47.6, saved.get(e.getRfIdent()).getLat(), 1.0e-6);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void failingChangeDoesNotHoldBackOthers() throws InterruptedException {
+        RfEmitter first = emitter(1, 47.6);
+        RfEmitter bad = emitter(2, 47.6);
+        RfEmitter second = emitter(3, 47.6);
+        Metrics metrics = new Metrics();
+        FailingDatabase db = new FailingDatabase(metrics);
+        db.failing = bad.getRfIdent();
+        try {
+            DatabaseWriter writer = new DatabaseWriter(db, metrics, WRITE_DELAY_MS);
+            writer.insert(first);
+            writer.insert(bad);
+            writer.insert(second);
+
+            // The good changes are written with the first attempt, the bad one is
+            // tried until it is dropped.
+            waitForWrites(writer);
+            assertEquals(1, metrics.counter("writer.dropped").get());
+            assertNull(writer.getPending(bad.getRfIdent()));
+            Map<RfIdentification, RfEmitter> saved = db.getEmitters(
+                    Arrays.asList(first.getRfIdent(), bad.getRfIdent(), second.getRfIdent()));
+            assertEquals(2, saved.size());
+            assertTrue(saved.containsKey(first.getRfIdent()));
+            assertTrue(saved.containsKey(second.getRfIdent()));
+
+            // And the writer carries on.
+            long commits = writer.getCommits();
+            RfEmitter third = emitter(4, 47.6);
+            writer.insert(third);
+            waitForWrites(writer);
+            assertEquals(commits + 1, writer.getCommits());
+            writer.close();
+            assertEquals(1, db.getEmitters(Collections.singletonList(third.getRfIdent())).size());
+        } finally {
+            db.close();
+        }
+    }
+}
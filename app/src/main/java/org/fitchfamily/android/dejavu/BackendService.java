@@ -34,6 +34,8 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.telephony.CellIdentityCdma;
 import android.telephony.CellIdentityGsm;
 import android.telephony.CellIdentityLte;
@@ -48,22 +50,30 @@ import android.telephony.NeighboringCellInfo;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
 import static android.Manifest.permission.ACCESS_COARSE_LOCATION;
 import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.Manifest.permission.ACCESS_WIFI_STATE;
 import static android.Manifest.permission.CHANGE_WIFI_STATE;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.microg.nlp.api.LocationBackendService;
 import org.microg.nlp.api.MPermissionHelperActivity;
@@ -79,41 +89,29 @@ public class BackendService extends LocationBackendService {
             ACCESS_WIFI_STATE, CHANGE_WIFI_STATE,
             ACCESS_COARSE_LOCATION, ACCESS_FINE_LOCATION};
 
-    public static final double DEG_TO_METER = 111225.0;
-    public static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
-    public static final double MIN_COS = 0.01;      // for things that are dividing by the cosine
-
-    // Define range of received signal strength to be used for all emitter types.
-    // Basically use the same range of values for LTE and WiFi as GSM defaults to.
-    public static final int MAXIMUM_ASU = 31;
-    public static final int MINIMUM_ASU = 1;
+    public static final int MAXIMUM_ASU = Observation.MAXIMUM_ASU;
+    public static final int MINIMUM_ASU = Observation.MINIMUM_ASU;
 
     // KPH -> Meters/millisec (KPH * 1000) / (60*60*1000) -> KPH/3600
     public static final float EXPECTED_SPEED = 120.0f / 3600;           // 120KPH (74 MPH)
 
     private static final float NULL_ISLAND_DISTANCE = 1000;
-    private static Location nullIsland = new Location(BackendService.LOCATION_PROVIDER);;
 
     /**
-     * Process noise for lat and lon.
-     *
-     * We do not have an accelerometer, so process noise ought to be large enough
-     * to account for reasonable changes in vehicle speed. Assume 0 to 100 kph in
-     * 5 seconds (20kph/sec ~= 5.6 m/s**2 acceleration). Or the reverse, 6 m/s**2
-     * is about 0-130 kph in 6 seconds
+     * Where a trace is recorded to if no file is given.
      */
-    private final static double GPS_COORDINATE_NOISE = 3.0;
-    private final static double POSITION_COORDINATE_NOISE = 6.0;
+    private static final String DEFAULT_TRACE = "dejavu.trace";
 
     private static BackendService instance;
     private boolean gpsMonitorRunning = false;
     private boolean wifiBroadcastReceiverRegistered = false;
-    private boolean permissionsOkay = true;
+    private volatile boolean permissionsOkay = true;
 
-    // We use a threads for potentially slow operations.
-    private Thread mobileThread;
-    private Thread backgroundThread;
-    private boolean wifiScanInprogress;
+    // We use threads for potentially slow operations. One for scanning mobile
+    // towers and one for processing the observations from all scans.
+    private volatile ThreadPoolExecutor mobileScanExecutor;
+    private volatile ThreadPoolExecutor processingExecutor;
+    private volatile boolean wifiScanInprogress;
 
     private TelephonyManager tm;
 
@@ -130,17 +128,67 @@ public class BackendService extends LocationBackendService {
         }
     };
 
-    private Kalman gpsLocation;             // Filtered GPS (because GPS is so bad on Moto G4 Play)
+    // The most recent WLAN scan not yet picked up by the processing thread. The
+    // broadcast receiver only drops the raw results here, a newer scan replaces an
+    // older one that hasn't been processed yet.
+    private final AtomicReference<WlanScan> latestWlanScan = new AtomicReference<>();
+
+    private final Runnable wlanScanWork = new Runnable() {
+        @Override
+        public void run() {
+            WlanScan scan = latestWlanScan.getAndSet(null);
+            if (scan != null)
+                processWlanScan(scan);
+        }
+    };
+
+    // The most recent GPS position not yet given to the pipeline. As with WLAN scans,
+    // the GPS callback only drops it here and leaves the rest to the processing thread.
+    private final AtomicReference<Position> latestGps = new AtomicReference<>();
+
+    private final Runnable gpsWork = new Runnable() {
+        @Override
+        public void run() {
+            Position gps = latestGps.getAndSet(null);
+            if (gps != null)
+                backgroundGps(gps);
+        }
+    };
+
+    // Guards the scan throttling, so that starting scans never waits on processing.
+    private final Object scanLock = new Object();
 
-    //
-    // Periodic process information.
-    //
-    // We keep a set of the WiFi APs we expected to see and ones we've seen and then
-    // periodically adjust the trust. Ones we've seen we increment, ones we expected
-    // to see but didn't we decrement.
-    //
-    private Set<RfIdentification> seenSet;
     private Cache emitterCache;
+    private EmitterPrefetcher prefetcher;
+    private Pipeline pipeline;
+    private final TraceReplay replay = new TraceReplay(this);
+
+    // Performance metrics, kept for the life of the service and shown by dump().
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram queueWait = metrics.histogram("queue.wait");
+    private final Metrics.Counter queueDropped = metrics.counter("queue.dropped");
+    private final Metrics.Counter wlanScans = metrics.counter("scan.wlan");
+    private final Metrics.Counter wlanScansSuperseded = metrics.counter("scan.wlan.superseded");
+    private final Metrics.Counter gpsSuperseded = metrics.counter("gps.superseded");
+    private final Metrics.Histogram mobileScanTimes = metrics.histogram("scan.mobile");
+
+    private final Pipeline.Listener periodListener = new Pipeline.Listener() {
+        @Override
+        public void onPeriodEnd(Position estimate, Position gps) {
+            if ((estimate != null) && notNullIsland(estimate.lat, estimate.lon)) {
+                //Log.d(TAG, "endOfPeriodProcessing(): " + estimate.toString());
+                report(LocationAdapter.toLocation(estimate));
+            }
+
+            // Start loading the emitters around where we are now, before we see them.
+            if (prefetcher != null) {
+                if (estimate != null)
+                    prefetcher.update(estimate.lat, estimate.lon);
+                else if (gps != null)
+                    prefetcher.update(gps.lat, gps.lon);
+            }
+        }
+    };
 
     //
     // Scanning and reporting are resource intensive operations, so we throttle
@@ -150,31 +198,87 @@ public class BackendService extends LocationBackendService {
     // So these numbers are the minimum time. Actual will be at least that based
     // on when we get GPS locations and/or update requests from microG/UnifiedNlp.
     //
-    private final static long REPORTING_INTERVAL   = 2700;                          // in milliseconds
-    private final static long MOBILE_SCAN_INTERVAL = REPORTING_INTERVAL/2 - 100;    // in milliseconds
-    private final static long WLAN_SCAN_INTERVAL   = REPORTING_INTERVAL/3 - 100;    // in milliseconds
+    private final static long MOBILE_SCAN_INTERVAL = Pipeline.REPORTING_INTERVAL/2 - 100;    // in milliseconds
+    private final static long WLAN_SCAN_INTERVAL   = Pipeline.REPORTING_INTERVAL/3 - 100;    // in milliseconds
 
     private long nextMobileScanTime;
     private long nextWlanScanTime;
-    private long nextReportTime;
 
     //
     // We want only a single background thread to do all the work but we have a couple
     // of asynchronous inputs. So put everything into a work item queue. . . and have
     // a single server pull and process the information.
     //
-    private class WorkItem {
+    // The queue is bounded. If processing falls behind, the oldest work item is
+    // dropped as newer scans supersede it.
+    //
+    private final static int MAX_WORK_QUEUE = 8;
+
+    private class WorkItem implements Runnable {
         Collection<Observation> observations;
-        Location loc;
         long time;
+        final long queuedNanos = System.nanoTime();
 
-        WorkItem(Collection<Observation> o, Location l, long tm) {
+        WorkItem(Collection<Observation> o, long tm) {
             observations = o;
-            loc = l;
             time = tm;
         }
+
+        @Override
+        public void run() {
+            queueWait.since(queuedNanos);
+            backgroundProcessing(observations, time);
+        }
+    }
+
+    /**
+     * Drops the oldest work item when the queue is full, counting the items dropped.
+     */
+    private class CountingDiscardOldestPolicy extends ThreadPoolExecutor.DiscardOldestPolicy {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (!e.isShutdown())
+                queueDropped.inc();
+            super.rejectedExecution(r, e);
+        }
+    }
+
+    /**
+     * The raw results of a WLAN scan, as handed over by the broadcast receiver.
+     */
+    private static class WlanScan {
+        final List<ScanResult> results;
+        final long time;
+        final long elapsedRealtimeNanos;
+
+        WlanScan(List<ScanResult> results, long time, long elapsedRealtimeNanos) {
+            this.results = results;
+            this.time = time;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        }
+    }
+
+    /**
+     * Creates named, background priority threads for our executors.
+     */
+    static class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, name);
+        }
     }
-    private Queue<WorkItem> workQueue = new ConcurrentLinkedQueue<>();
 
     //
     // Overrides of inherited methods
@@ -184,8 +288,13 @@ public class BackendService extends LocationBackendService {
     public void onCreate() {
         //Log.d(TAG, "onCreate() entry.");
         super.onCreate();
-        nullIsland.setLatitude(0.0);
-        nullIsland.setLongitude(0.0);
+        metrics.gauge("queue.depth", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                ThreadPoolExecutor executor = processingExecutor;
+                return (executor == null) ? 0 : executor.getQueue().size();
+            }
+        });
     }
 
     /**
@@ -196,14 +305,32 @@ public class BackendService extends LocationBackendService {
         Log.d(TAG, "onOpen() entry.");
         super.onOpen();
         instance = this;
-        nextReportTime = 0;
-        nextMobileScanTime = 0;
-        nextWlanScanTime = 0;
+        synchronized (scanLock) {
+            nextMobileScanTime = 0;
+            nextWlanScanTime = 0;
+        }
         wifiBroadcastReceiverRegistered = false;
         wifiScanInprogress = false;
 
         if (emitterCache == null)
-            emitterCache = new Cache(this);
+            emitterCache = new Cache(this, metrics);
+        if (prefetcher == null)
+            prefetcher = new EmitterPrefetcher(emitterCache);
+        if (pipeline == null)
+            pipeline = new Pipeline(emitterCache, Clock.SYSTEM, periodListener, metrics);
+
+        // A mobile scan is only started if the previous one has finished, so there is
+        // no queue for the scan thread.
+        if (mobileScanExecutor == null)
+            mobileScanExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new WorkerThreadFactory("DejaVu mobile scan"),
+                    new ThreadPoolExecutor.DiscardPolicy());
+        if (processingExecutor == null)
+            processingExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_WORK_QUEUE),
+                    new WorkerThreadFactory("DejaVu processing"),
+                    new CountingDiscardOldestPolicy());
 
         permissionsOkay = true;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -233,6 +360,23 @@ public class BackendService extends LocationBackendService {
         }
         setgpsMonitorRunning(false);
 
+        if (mobileScanExecutor != null) {
+            mobileScanExecutor.shutdownNow();
+            mobileScanExecutor = null;
+        }
+        if (processingExecutor != null) {
+            processingExecutor.shutdown();
+            processingExecutor = null;
+        }
+
+        if (pipeline != null) {
+            stopTrace(pipeline);
+            pipeline = null;
+        }
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
         if (emitterCache != null) {
             emitterCache.close();
             emitterCache = null;
@@ -271,6 +415,120 @@ public class BackendService extends LocationBackendService {
         return super.getInitIntent();
     }
 
+    /**
+     * Called by Android for "dumpsys activity service". Write our diagnostic information.
+     *
+     * The arguments can also be used to record and replay traces of our inputs:
+     *   trace start [file]     Start recording
+     *   trace stop             Stop recording
+     *   replay file [database] Start feeding a trace through a separate pipeline,
+     *                          starting with a copy of the database if one is given.
+     *   replay status          Show the progress of a replay, or its results.
+     * and "metrics reset" sets the performance metrics back to zero.
+     * Files not given with a full path are in our external files directory.
+     *
+     * @param fd The raw file descriptor the dump is being sent to
+     * @param writer Where to write the dump
+     * @param args Additional arguments to the dump request
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if ((args != null) && (args.length > 0)) {
+            command(writer, args);
+            return;
+        }
+        super.dump(fd, writer, args);
+        writer.println("DejaVu: permissions okay " + permissionsOkay +
+                ", GPS monitor running " + gpsMonitorRunning);
+        Cache cache = emitterCache;
+        if (cache != null)
+            cache.dump(writer);
+        else
+            writer.println("Cache: closed");
+        metrics.dump(writer);
+        replay.dumpStatus(writer);
+    }
+
+    /**
+     * Carry out a command given to dump().
+     *
+     * @param writer Where to write the results
+     * @param args The command and its arguments
+     */
+    private void command(PrintWriter writer, String[] args) {
+        String cmd = args[0] + ((args.length > 1) ? " " + args[1] : "");
+        if (cmd.equals("trace start")) {
+            startTrace(writer, traceFile((args.length > 2) ? args[2] : DEFAULT_TRACE));
+        } else if (cmd.equals("trace stop")) {
+            Pipeline p;
+            synchronized (this) {
+                p = pipeline;
+            }
+            if (p != null)
+                writer.println("Trace: " + stopTrace(p) + " records.");
+            else
+                writer.println("Trace: not running.");
+        } else if (cmd.equals("metrics reset")) {
+            metrics.reset();
+            writer.println("Metrics: reset.");
+        } else if (cmd.equals("replay status")) {
+            replay.dumpResult(writer);
+        } else if (args[0].equals("replay") && (args.length > 1)) {
+            if (replay.start(traceFile(args[1]), (args.length > 2) ? traceFile(args[2]) : null))
+                writer.println("Replay: started, \"replay status\" shows progress and results.");
+            else
+                replay.dumpStatus(writer);
+        } else {
+            writer.println("Usage: trace start [file] | trace stop | replay file [database] | " +
+                    "replay status | metrics reset");
+        }
+    }
+
+    private File traceFile(String name) {
+        File file = new File(name);
+        if (file.isAbsolute())
+            return file;
+        File dir = getExternalFilesDir(null);
+        return new File((dir != null) ? dir : getFilesDir(), name);
+    }
+
+    private void startTrace(PrintWriter writer, File file) {
+        Pipeline p;
+        synchronized (this) {
+            p = pipeline;
+        }
+        if (p == null) {
+            writer.println("Trace: not running.");
+            return;
+        }
+        try {
+            Trace.Writer trace = new Trace.Writer(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            Trace.Writer old = p.setRecorder(trace);
+            if (old != null)
+                old.close();
+            writer.println("Trace: recording to " + file);
+        } catch (IOException e) {
+            writer.println("Trace: " + e);
+        }
+    }
+
+    /**
+     * @param p The pipeline being recorded
+     * @return The number of records written
+     */
+    private static long stopTrace(Pipeline p) {
+        Trace.Writer trace = p.setRecorder(null);
+        if (trace == null)
+            return 0;
+        try {
+            trace.close();
+        } catch (IOException e) {
+            Log.w(TAG, "stopTrace() - closing trace failed.", e);
+        }
+        return trace.getRecords();
+    }
+
     /**
      * Called by microG/UnifiedNlp when it wants a position update. We return a null indicating
      * we don't have a current position but treat it as a good time to kick off a scan of all
@@ -312,7 +570,18 @@ public class BackendService extends LocationBackendService {
      * @return boolean True if away from lat,lon of 0,0
      */
     public static boolean notNullIsland(Location loc) {
-        return (nullIsland.distanceTo(loc) > NULL_ISLAND_DISTANCE);
+        return notNullIsland(loc.getLatitude(), loc.getLongitude());
+    }
+
+    /**
+     * Check if a position is too close to null island to be real
+     *
+     * @param lat The latitude to be checked
+     * @param lon The longitude to be checked
+     * @return boolean True if away from lat,lon of 0,0
+     */
+    public static boolean notNullIsland(double lat, double lon) {
+        return (Geometry.distance(lat, lon, 0.0, 0.0) > NULL_ISLAND_DISTANCE);
     }
 
     //
@@ -324,23 +593,25 @@ public class BackendService extends LocationBackendService {
      * Kalman filter (our best guess on GPS reported position) and since our location is
      * pretty current it is a good time to kick of a scan of RF sensors.
      *
+     * This runs on the main thread, so the position is handed to the processing thread
+     * rather than waiting for it to finish what it is doing. A newer position replaces
+     * one it hasn't picked up yet.
+     *
      * @param updt The current GPS reported location
      */
     private void onGpsChanged(Location updt) {
-        synchronized (this) {
-            if (permissionsOkay) {
-                if (notNullIsland(updt)) {
-                    //Log.d(TAG, "onGpsChanged() entry.");
-                    if (gpsLocation == null)
-                        gpsLocation = new Kalman(updt, GPS_COORDINATE_NOISE);
-                    else
-                        gpsLocation.update(updt);
-
-                    scanAllSensors();
-                }
-            } else {
-                Log.d(TAG, "onGpsChanged() - Permissions not granted, soft fail.");
+        if (permissionsOkay) {
+            ThreadPoolExecutor executor = processingExecutor;
+            if (notNullIsland(updt) && (executor != null)) {
+                //Log.d(TAG, "onGpsChanged() entry.");
+                if (latestGps.getAndSet(LocationAdapter.toPosition(updt)) != null)
+                    gpsSuperseded.inc();
+                executor.execute(gpsWork);
+
+                scanAllSensors();
             }
+        } else {
+            Log.d(TAG, "onGpsChanged() - Permissions not granted, soft fail.");
         }
     }
 
@@ -349,9 +620,9 @@ public class BackendService extends LocationBackendService {
      * should occur asynchronously so we don't hang up our caller's thread.
      */
     private void scanAllSensors() {
-        synchronized (this) {
-            if (emitterCache == null) {
-                Log.d(TAG, "scanAllSensors() - emitterCache is null?!?");
+        synchronized (scanLock) {
+            if (processingExecutor == null) {
+                Log.d(TAG, "scanAllSensors() - Not open.");
                 return;
             }
             startWiFiScan();
@@ -361,7 +632,7 @@ public class BackendService extends LocationBackendService {
 
     /**
      * Ask Android's WiFi manager to scan for access points (APs). When done the onWiFisChanged()
-     * method will be called by Android.
+     * method will be called by Android. Called with scanLock held.
      */
     private void startWiFiScan() {
         // Throttle scanning for WiFi APs. In open terrain an AP could cover a kilometer.
@@ -386,10 +657,10 @@ public class BackendService extends LocationBackendService {
     }
 
     /**
-     * Start a separate thread to scan for mobile (cell) towers. This can take some time so
-     * we won't do it in the caller's thread.
+     * Use our scan thread to scan for mobile (cell) towers. This can take some time so
+     * we won't do it in the caller's thread. Called with scanLock held.
      */
-    private synchronized void startMobileScan() {
+    private void startMobileScan() {
         // Throttle scanning for mobile towers. Generally each tower covers a significant amount
         // of terrain so even if we are moving fairly rapidly we should remain in a single tower's
         // coverage area for several seconds. No need to sample more ofen than that and we save
@@ -400,20 +671,20 @@ public class BackendService extends LocationBackendService {
             return;
         nextMobileScanTime = currentProcessTime + MOBILE_SCAN_INTERVAL;
 
-        // Scanning towers takes some time, so do it in a separate thread.
-        if (mobileThread != null) {
-            Log.d(TAG,"startMobileScan() - Thread exists.");
+        // Scanning towers takes some time, so do it in a separate thread. If a scan
+        // is still running the executor will discard this one.
+        ThreadPoolExecutor executor = mobileScanExecutor;
+        if (executor == null) {
+            Log.d(TAG,"startMobileScan() - No scan thread.");
             return;
         }
-        //Log.d(TAG,"startMobileScan() - Starting mobile signal scan thread.");
-        mobileThread = new Thread(new Runnable() {
+        //Log.d(TAG,"startMobileScan() - Starting mobile signal scan.");
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 scanMobile();
-                mobileThread = null;
             }
         });
-        mobileThread.start();
     }
 
     /**
@@ -422,7 +693,9 @@ public class BackendService extends LocationBackendService {
      */
     private void scanMobile() {
         // Log.d(TAG, "scanMobile() - calling getMobileTowers().");
+        long start = System.nanoTime();
         Collection<Observation> observations = getMobileTowers();
+        mobileScanTimes.since(start);
 
         if (observations.size() > 0) {
             // Log.d(TAG,"scanMobile() " + observations.size() + " records to be queued for processing.");
@@ -470,7 +743,7 @@ public class BackendService extends LocationBackendService {
                                 id.getPci() + "/" + id.getTac();
                         int asu = (info.getCellSignalStrength().getAsuLevel() * MAXIMUM_ASU) / 97;
 
-                        Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+                        Observation o = newObservation(idStr, EmitterType.MOBILE);
                         o.setAsu(asu);
                         observations.add(o);
                     } else {
@@ -489,7 +762,7 @@ public class BackendService extends LocationBackendService {
                                 id.getMnc() + "/" + id.getLac() + "/" +
                                 id.getCid();
                         int asu = info.getCellSignalStrength().getAsuLevel();
-                        Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+                        Observation o = newObservation(idStr, EmitterType.MOBILE);
                         o.setAsu(asu);
                         observations.add(o);
                     } else {
@@ -508,7 +781,7 @@ public class BackendService extends LocationBackendService {
                                 id.getMnc() + "/" + id.getLac() + "/" +
                                 id.getCid();
                         int asu = info.getCellSignalStrength().getAsuLevel();
-                        Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+                        Observation o = newObservation(idStr, EmitterType.MOBILE);
                         o.setAsu(asu);
                         observations.add(o);
                     } else {
@@ -526,7 +799,7 @@ public class BackendService extends LocationBackendService {
                         String idStr = "CDMA" + "/" + id.getNetworkId() + "/" +
                                 id.getSystemId() + "/" + id.getBasestationId();
                         int asu = info.getCellSignalStrength().getAsuLevel();
-                        Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+                        Observation o = newObservation(idStr, EmitterType.MOBILE);
                         o.setAsu(asu);
                         observations.add(o);
                     } else {
@@ -578,7 +851,7 @@ public class BackendService extends LocationBackendService {
                     mnc + "/" + info.getLac() + "/" +
                     info.getCid();
 
-            Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+            Observation o = newObservation(idStr, EmitterType.MOBILE);
             o.setAsu(MINIMUM_ASU);
             observations.add(o);
 
@@ -595,7 +868,7 @@ public class BackendService extends LocationBackendService {
                                 mnc + "/" + neighbor.getLac() + "/" +
                                 neighbor.getCid();
 
-                        Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
+                        Observation o = newObservation(idStr, EmitterType.MOBILE);
                         o.setAsu(neighbor.getRssi());
                         observations.add(o);
                     }
@@ -644,34 +917,55 @@ public class BackendService extends LocationBackendService {
 
     /**
      * Call back method entered when Android has completed a scan for WiFi emitters in
-     * the area.
+     * the area. This runs on the main thread, so all we do is grab the results and
+     * leave the rest of the work to the processing thread.
      */
-    private synchronized void onWiFisChanged() {
-        if ((wm != null) && (emitterCache != null)) {
-            List<ScanResult> scanResults = wm.getScanResults();
-            Set<Observation> observations = new HashSet<>();
-            for (ScanResult sr : scanResults) {
-                String bssid = sr.BSSID.toLowerCase(Locale.US).replace(".", ":");
-                RfEmitter.EmitterType rftype = RfEmitter.EmitterType.WLAN_24GHZ;
-                if (is5GHz(sr))
-                    rftype = RfEmitter.EmitterType.WLAN_5GHZ;
-                Log.i(TAG,"rfType="+rftype.toString()+", ScanResult="+sr.toString());
-                if (bssid != null) {
-                    Observation o = new Observation(bssid, rftype);
-
-                    o.setAsu(WifiManager.calculateSignalLevel(sr.level, MAXIMUM_ASU));
-                    o.setNote(sr.SSID);
-                    observations.add(o);
-                }
-            }
-            if (!observations.isEmpty()) {
-                // Log.d(TAG, "onWiFisChanged(): Observations: " + observations.toString());
-                queueForProcessing(observations, System.currentTimeMillis());
-            }
+    private void onWiFisChanged() {
+        WifiManager manager = wm;
+        ThreadPoolExecutor executor = processingExecutor;
+        if ((manager != null) && (executor != null)) {
+            WlanScan old = latestWlanScan.getAndSet(new WlanScan(manager.getScanResults(),
+                    System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos()));
+            if (old != null)
+                wlanScansSuperseded.inc();
+            executor.execute(wlanScanWork);
         }
         wifiScanInprogress = false;
     }
 
+    /**
+     * Turn the results of a WLAN scan into observations and process them. Called on
+     * the processing thread.
+     *
+     * @param scan The scan results and the time they were received
+     */
+    private void processWlanScan(WlanScan scan) {
+        queueWait.record(SystemClock.elapsedRealtimeNanos() - scan.elapsedRealtimeNanos);
+        wlanScans.inc();
+        if (scan.results == null)
+            return;
+        Set<Observation> observations = new HashSet<>();
+        for (ScanResult sr : scan.results) {
+            if (sr.BSSID == null)
+                continue;
+            String bssid = sr.BSSID.toLowerCase(Locale.US).replace(".", ":");
+            EmitterType rftype = EmitterType.WLAN_24GHZ;
+            if (is5GHz(sr))
+                rftype = EmitterType.WLAN_5GHZ;
+            if (DEBUG)
+                Log.d(TAG,"rfType="+rftype.toString()+", ScanResult="+sr.toString());
+            Observation o = new Observation(bssid, rftype, scan.time, scan.elapsedRealtimeNanos);
+
+            o.setAsu(WifiManager.calculateSignalLevel(sr.level, MAXIMUM_ASU));
+            o.setNote(sr.SSID);
+            observations.add(o);
+        }
+        if (!observations.isEmpty()) {
+            // Log.d(TAG, "processWlanScan(): Observations: " + observations.toString());
+            backgroundProcessing(observations, scan.time);
+        }
+    }
+
     /**
      * This seems like it ought to be in ScanResult but I get an unidentified error
      * @param sr Result from a WLAN/WiFi scan
@@ -687,37 +981,26 @@ public class BackendService extends LocationBackendService {
     }
 
     /**
-     * Add a collection of observations to our background thread's work queue. If
-     * no thread currently exists, start one.
+     * @param id The ID of the emitter
+     * @param type The type of the emitter
+     * @return A new observation of the emitter made now
+     */
+    private static Observation newObservation(String id, EmitterType type) {
+        return new Observation(id, type, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Add a collection of observations to our background thread's work queue.
      *
      * @param observations A set of RF emitter observations (all must be of the same type)
      * @param timeMs The time the observations were made.
      */
-    private synchronized void queueForProcessing(Collection<Observation> observations,
-                                                 long timeMs) {
-        Location loc = null;
-        if ((gpsLocation != null) && notNullIsland(gpsLocation.getLocation()))
-            loc = gpsLocation.getLocation();
-        WorkItem work = new WorkItem(observations, loc, timeMs);
-        workQueue.offer(work);
-
-        if (backgroundThread != null) {
-            // Log.d(TAG,"queueForProcessing() - Thread exists.");
-            return;
-        }
+    private void queueForProcessing(Collection<Observation> observations, long timeMs) {
+        WorkItem work = new WorkItem(observations, timeMs);
 
-        backgroundThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                WorkItem myWork = workQueue.poll();
-                while (myWork != null) {
-                    backgroundProcessing(myWork);
-                    myWork = workQueue.poll();
-                }
-                backgroundThread = null;
-            }
-        });
-        backgroundThread.start();
+        ThreadPoolExecutor executor = processingExecutor;
+        if (executor != null)
+            executor.execute(work);
     }
 
     //
@@ -725,305 +1008,24 @@ public class BackendService extends LocationBackendService {
     //
 
     /**
-     * Process a group of observations. Process in this context means
-     * 1. Add the emitters to the set of emitters we have seen in this processing period.
-     * 2. If the GPS is accurate enough, update our coverage estimates for the emitters.
-     * 3. If the GPS is accurate enough, update a list of emitters we think we should have seen.
-     * 3. Compute a position based on the current observations.
-     * 4. If our collection period is over, report our position to microG/UnifiedNlp and
-     *    synchonize our information with the flash based database.
-     *
-     * @param myWork
-     */
-    private synchronized void backgroundProcessing(WorkItem myWork) {
-        if (emitterCache == null)
-            return;
-
-        if (seenSet == null)
-            seenSet = new HashSet<>();
-
-        Collection<RfEmitter> emitters = new HashSet<>();
-
-        // Remember all the emitters we've seen during this processing period
-        // and build a set of emitter objects for each RF emitter in the
-        // observation set.
-
-        for (Observation o : myWork.observations) {
-            seenSet.add(o.getIdent());
-            RfEmitter e = emitterCache.get(o.getIdent());
-            if (e != null) {
-                e.setLastObservation(o);
-                emitters.add(e);
-            }
-        }
-
-        // Update emitter coverage based on GPS as needed and get the set of locations
-        // the emitters are known to be seen at.
-
-        updateEmitters( emitters, myWork.loc, myWork.time);
-
-        // Check for the end of our collection period. If we are in a new period
-        // then finish off the processing for the previous period.
-        long currentProcessTime = System.currentTimeMillis();
-        if (currentProcessTime >= nextReportTime) {
-            nextReportTime = currentProcessTime + REPORTING_INTERVAL;
-            endOfPeriodProcessing();
-        }
-    }
-
-    /**
-     * Update the coverage estimates for the emitters we have just gotten observations for.
-     *
-     * @param emitters The emitters we have just observed
-     * @param gps The GPS position at the time the observations were collected.
-     * @param curTime The time the observations were collected
-     */
-    private synchronized void updateEmitters(Collection<RfEmitter> emitters, Location gps, long curTime) {
-
-        if (emitterCache == null) {
-            Log.d(TAG,"updateEmitters() - emitterCache is null?!?");
-            emitterCache = new Cache(this);
-        }
-
-        for (RfEmitter emitter : emitters) {
-            emitter.updateLocation(gps);
-        }
-    }
-
-    /**
-     * Get coverage estimates for a list of emitter IDs. Locations are marked with the
-     * time of last update, etc.
-     *
-     * @param rfids IDs of the emitters desired
-     * @return A list of the coverage areas for the emitters
-     */
-    private List<Location> getRfLocations(Collection<RfIdentification> rfids) {
-        List<Location> locations = new LinkedList<>();
-        for (RfIdentification id : rfids) {
-            RfEmitter e = emitterCache.get(id);
-            if (e != null) {
-                Location l = e.getLocation();
-                if (l != null) {
-                    locations.add(l);
-                }
-            }
-        }
-        return locations;
-    }
-
-    /**
-     * Compute our current location using a weighted average algorithm. We also keep
-     * track of the types of emitters we have seen for the end of period processing.
-     *
-     * For any given reporting interval, we will only use an emitter once, so we keep
-     * a set of used emitters.
-     *
-     * @param locations The set of coverage information for the current observations
-     */
-    private Location computePostion(Collection<Location> locations) {
-        if (locations == null)
-            return null;
-
-        WeightedAverage weightedAverage = new WeightedAverage();
-        for (Location l : locations) {
-            weightedAverage.add(l);
-        }
-        return weightedAverage.result();
-    }
-
-    /**
-     *
-     * The collector service attempts to detect and not report moved/moving emitters.
-     * But it (and thus our database) can't be perfect. This routine looks at all the
-     * emitters and returns the largest subset (group) that are within a reasonable
-     * distance of one another.
-     *
-     * The hope is that a single moved/moving emitters that is seen now but whose
-     * location was detected miles away can be excluded from the set of APs
-     * we use to determine where the phone is at this moment.
+     * Feed a group of observations to the processing pipeline.
      *
-     * We do this by creating collections of emitters where all the emitters in a group
-     * are within a plausible distance of one another. A single emitters may end up
-     * in multiple groups. When done, we return the largest group.
-     *
-     * If we are at the extreme limit of possible coverage (movedThreshold)
-     * from two emitters then those emitters could be a distance of 2*movedThreshold apart.
-     * So we will group the emitters based on that large distance.
-     *
-     * @param locations A collection of the coverages for the current observation set
-     * @return The largest set of coverages found within the raw observations. That is
-     * the most believable set of coverage areas.
-     */
-    private Set<Location> culledEmitters(Collection<Location> locations) {
-        Set<Set<Location>> locationGroups = divideInGroups(locations);
-
-        List<Set<Location>> clsList = new ArrayList<>(locationGroups);
-        Collections.sort(clsList, new Comparator<Set<Location>>() {
-            @Override
-            public int compare(Set<Location> lhs, Set<Location> rhs) {
-                return rhs.size() - lhs.size();
-            }
-        });
-
-        if (!clsList.isEmpty()) {
-            Set<Location> rslt = clsList.get(0);
-
-            // Determine minimum count for a valid group of emitters.
-            // The RfEmitter class will have put the min count into the location
-            // it provided.
-            Long reqdCount = 99999L;            // Some impossibly big number
-            for (Location l : rslt) {
-                reqdCount = Math.min(l.getExtras().getLong(RfEmitter.LOC_MIN_COUNT,9999L),reqdCount);
-            }
-            //Log.d(TAG,"culledEmitters() reqdCount="+reqdCount+", size="+rslt.size());
-            if (rslt.size() >= reqdCount)
-                return rslt;
-        }
-        return null;
-    }
-
-    /**
-     * Build a set of sets (or groups) each outer set member is a set of coverage of
-     * reasonably near RF emitters. Basically we are grouping the raw observations
-     * into clumps based on how believably close together they are. An outlying emitter
-     * will likely be put into its own group. Our caller will take the largest set as
-     * the most believable group of observations to use to compute a position.
-     *
-     * @param locations A set of RF emitter coverage records
-     * @return A set of coverage sets.
-     */
-    private Set<Set<Location>> divideInGroups(Collection<Location> locations) {
-
-        Set<Set<Location>> bins = new HashSet<>();
-
-        // Create a bins
-        for (Location location : locations) {
-            Set<Location> locGroup = new HashSet<>();
-            locGroup.add(location);
-            bins.add(locGroup);
-        }
-
-        for (Location location : locations) {
-            for (Set<Location> locGroup : bins) {
-                if (locationCompatibleWithGroup(location, locGroup)) {
-                    locGroup.add(location);
-                }
-            }
-        }
-        return bins;
-    }
-
-    /**
-     * Check to see if the coverage area (location) of an RF emitter is close
-     * enough to others in a group that we can believably add it to the group.
-     * @param location The coverage area of the candidate emitter
-     * @param locGroup The coverage areas of the emitters already in the group
-     * @return True if location is close to others in group
-     */
-    private boolean locationCompatibleWithGroup(Location location,
-                                                Set<Location> locGroup) {
-
-        // If the location is within range of all current members of the
-        // group, then we are compatible.
-        for (Location other : locGroup) {
-            double testDistance = (location.distanceTo(other) -
-                    location.getAccuracy() -
-                    other.getAccuracy());
-
-            if (testDistance > 0.0) {
-                //Log.d(TAG,"locationCompatibleWithGroup(): "+testDistance);
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /**
-     * We bulk up operations to reduce writing to flash memory. And there really isn't
-     * much need to report location to microG/UnifiedNlp more often than once every three
-     * or four seconds. Another reason is that we can average more samples into each
-     * report so there is a chance that our position computation is more accurate.
+     * @param observations A set of RF emitter observations (all must be of the same type)
+     * @param timeMs The time the observations were made.
      */
-    private void endOfPeriodProcessing() {
-
-        //Log.d(TAG,"endOfPeriodProcessing() - Starting new process period.");
-
-        // Estimate location using weighted average of the most recent
-        // observations from the set of RF emitters we have seen. We cull
-        // the locations based on distance from each other to reduce the
-        // chance that a moved/moving emitter will be used in the computation.
-
-        Collection<Location> locations = culledEmitters(getRfLocations(seenSet));
-        Location weightedAverageLocation = computePostion(locations);
-        if ((weightedAverageLocation != null) && notNullIsland(weightedAverageLocation)) {
-            //Log.d(TAG, "endOfPeriodProcessing(): " + weightedAverageLocation.toString());
-            report(weightedAverageLocation);
-        }
-
-        // Increment the trust of the emitters we've seen and decrement the trust
-        // of the emitters we expected to see but didn't.
-
-        if (seenSet != null) {
-            for (RfIdentification id : seenSet) {
-                if (id != null) {
-                    RfEmitter e = emitterCache.get(id);
-                    if (e != null)
-                        e.incrementTrust();
-                }
-            }
-        }
-
-        // If we are dealing with very movable emitters, then try to detect ones that
-        // have moved out of the area. We do that by collecting the set of emitters
-        // that we expected to see in this area based on the GPS and our own location
-        // computation.
-
-        Set<RfIdentification> expectedSet = new HashSet<>();
-        if (weightedAverageLocation != null) {
-            emitterCache.sync();        // getExpected() ends bypassing the cache, so sync first
-
-            for (RfEmitter.EmitterType etype : RfEmitter.EmitterType.values()) {
-                expectedSet.addAll(getExpected(weightedAverageLocation, etype));
-            }
-            if (gpsLocation != null) {
-                for (RfEmitter.EmitterType etype : RfEmitter.EmitterType.values()) {
-                    expectedSet.addAll(getExpected(gpsLocation.getLocation(), etype));
-                }
-            }
-        }
-
-        for (RfIdentification  u : expectedSet) {
-            if (!seenSet.contains(u)) {
-                RfEmitter e = emitterCache.get(u);
-                if (e != null) {
-                    e.decrementTrust();
-                }
-            }
-        }
-
-        // Sync all of our changes to the on flash database and reset the RF emitters we've seen.
-
-        emitterCache.sync();
-        seenSet = new HashSet<>();
+    private synchronized void backgroundProcessing(Collection<Observation> observations, long timeMs) {
+        if (pipeline != null)
+            pipeline.process(observations, timeMs);
     }
 
     /**
-     * Add all the RF emitters of the specified type within the specified bounding
-     * box to the set of emitters we expect to see. This is used to age out emitters
-     * that may have changed locations (or gone off the air). When aged out we
-     * can remove them from our database.
+     * Feed a GPS position to the processing pipeline.
      *
-     * @param loc The location we think we are at.
-     * @param rfType The type of RF emitters we expect to see within the bounding
-     *               box.
-     * @return A set of IDs for the RF emitters we should expect in this location.
+     * @param gps The position
      */
-    private Set<RfIdentification> getExpected(Location loc, RfEmitter.EmitterType rfType) {
-        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(rfType);
-        if ((loc == null) || (loc.getAccuracy() > rfChar.typicalRange))
-            return new HashSet<>();
-        BoundingBox bb = new BoundingBox(loc.getLatitude(), loc.getLongitude(), rfChar.typicalRange);
-        return emitterCache.getEmitters(rfType, bb);
+    private synchronized void backgroundGps(Position gps) {
+        if (pipeline != null)
+            pipeline.onGps(gps);
     }
 }
 
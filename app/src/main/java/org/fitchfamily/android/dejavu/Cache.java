@@ -25,10 +25,18 @@ package org.fitchfamily.android.dejavu;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * All access to the database is done through this cache:
@@ -40,33 +48,190 @@ import java.util.Set;
  *
  * Periodically we are asked to sync any new or changed RF emitter information to the
  * database. When that occurs we group all the changes in one database transaction for
- * speed.
+ * speed. In write-behind mode the changes are instead handed to a DatabaseWriter which
+ * writes them on its own thread, so our caller does not wait on flash writes.
  *
- * If an emitter has not been used for a while we will remove it from the cache (only
- * immediately after a sync() operation so the record will be clean). If the cache grows
- * too large we will clear it to conservery RAM (this should never happen). Again the
- * clear operation will only occur after a sync() so any dirty records will be flushed
- * to the database.
+ * The cache normally holds at most a fixed number of emitters. When it is full the
+ * least recently used emitter is evicted. Emitters handed out by get() and getAll()
+ * are pinned until the next sync(), as our caller may still change them, and emitters
+ * with changes not yet written are kept too. Neither is ever evicted, so the cache
+ * may hold more than its capacity until the next sync() unpins them.
  *
- * Operations on the cache are thread safe. However the underlying RF emitter objects
+ * Emitters around our position can be loaded into the cache before they are seen with
+ * prefetch(). See EmitterPrefetcher.
+ *
+ * Operations on the cache are thread safe. The emitters are split between a number of
+ * stripes by the hash of their identification, each stripe with its own lock and its
+ * own least recently used list. The stripe locks are only held while looking at the
+ * in memory maps, never while reading or writing the database, so a lookup of an
+ * emitter in memory never waits on flash. However the underlying RF emitter objects
  * that are returned by the cache are not thread safe. So all work on them should be
  * performed either in a single thread or with synchronization.
  */
 class Cache {
-    private static final int MAX_WORKING_SET_SIZE = 200;
-    private static final int MAX_AGE = 30;
+    /**
+     * Default number of emitters held in memory. A dense urban scan can easily
+     * see 150+ WLANs and we also look up the emitters we expect to see, so leave
+     * plenty of room for a few scans worth of emitters.
+     */
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Number of independently locked parts of the cache.
+     */
+    private static final int STRIPES = 8;
 
     private static final String TAG="DejaVu Cache";
 
+    private final int capacity;
+
+    /**
+     * One part of the cache. All fields are guarded by the stripe's monitor.
+     */
+    private static class Stripe {
+        private final int stripeCapacity;
+
+        /**
+         * Map (since they all must have different identifications) of
+         * the emitters in this stripe we are working with. Kept in access
+         * order so the eldest entry is the least recently used. Keyed
+         * directly on the identification as its hash and equality checks
+         * are cheap.
+         */
+        final LinkedHashMap<RfIdentification,RfEmitter> workingSet;
+
+        /**
+         * Emitters handed out since the last sync(), which must not be evicted.
+         */
+        final Set<RfIdentification> pinned = new HashSet<>();
+
+        long hits;
+        long misses;
+        long evictions;
+        long prefetched;
+
+        Stripe(final int stripeCapacity) {
+            this.stripeCapacity = stripeCapacity;
+            workingSet = new LinkedHashMap<RfIdentification,RfEmitter>(stripeCapacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<RfIdentification,RfEmitter> eldest) {
+                    trim();
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Find an emitter in memory and pin it.
+         *
+         * @param id The identification of the emitter
+         * @return The emitter or null if it isn't in memory
+         */
+        RfEmitter lookup(RfIdentification id) {
+            RfEmitter rslt = workingSet.get(id);
+            if (rslt != null) {
+                hits++;
+                pinned.add(id);
+                return rslt;
+            }
+            misses++;
+            return null;
+        }
+
+        /**
+         * Add an emitter that was loaded without holding our lock, and pin it. If
+         * another thread added the emitter in the meantime, or it has changes waiting
+         * to be written, those take precedence over what was loaded.
+         *
+         * @param id The identification of the emitter
+         * @param loaded The emitter as loaded, or null if it is not in the database
+         * @param writer The write-behind queue, may be null
+         * @return The emitter now in the working set
+         */
+        RfEmitter add(RfIdentification id, RfEmitter loaded, DatabaseWriter writer) {
+            pinned.add(id);
+            RfEmitter rslt = workingSet.get(id);
+            if (rslt != null)
+                return rslt;
+            DatabaseWriter.Pending p = (writer == null) ? null : writer.getPending(id);
+            rslt = (p == null) ? loaded : p.newEmitter();
+            if (rslt == null)
+                rslt = new RfEmitter(id);
+            workingSet.put(id, rslt);
+            return rslt;
+        }
+
+        /**
+         * Evict the least recently used emitters until we are back within our
+         * capacity. Pinned emitters and emitters with changes not yet written
+         * are skipped, if there are enough of them we stay over capacity.
+         */
+        void trim() {
+            if (workingSet.size() <= stripeCapacity)
+                return;
+            Iterator<Map.Entry<RfIdentification,RfEmitter>> it = workingSet.entrySet().iterator();
+            while ((workingSet.size() > stripeCapacity) && it.hasNext()) {
+                Map.Entry<RfIdentification,RfEmitter> entry = it.next();
+                if (pinned.contains(entry.getKey()) || entry.getValue().syncNeeded())
+                    continue;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    /**
+     * Held for reading while the database is in use and for writing while
+     * it is being closed.
+     */
+    private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes sync() and close().
+     */
+    private final Object syncLock = new Object();
+
+    private volatile Database db;
+    private volatile DatabaseWriter writer;
+
     /**
-     * Map (since they all must have different identifications) of
-     * all the emitters we are working with.
+     * Number of times we have written directly to the database.
      */
-    private final Map<String,RfEmitter> workingSet = new HashMap<>();
-    private Database db;
+    private final AtomicLong directWrites = new AtomicLong();
+
+    private final Metrics.Histogram getAllTimes;
+    private final Metrics.Histogram loadTimes;
+    private final Metrics.Counter loadRetries;
+    private final Metrics.Histogram syncTimes;
+    private final Metrics.Counter syncRows;
 
-    Cache(Context context) {
-        db = new Database(context);
+    Cache(Context context, Metrics metrics) {
+        this(context, Database.NAME, DEFAULT_CAPACITY, true, metrics);
+    }
+
+    /**
+     * @param context The context to open the database in
+     * @param dbName The name of the database file
+     * @param capacity The maximum number of emitters to hold in memory
+     * @param writeBehind If true, changes are written to the database by a
+     *                    separate writer thread.
+     * @param metrics Where to count our work, and that of the database
+     */
+    Cache(Context context, String dbName, int capacity, boolean writeBehind, Metrics metrics) {
+        this.capacity = capacity;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe((capacity + STRIPES - 1) / STRIPES);
+        getAllTimes = metrics.histogram("cache.getAll");
+        loadTimes = metrics.histogram("cache.load");
+        loadRetries = metrics.counter("cache.load.retries");
+        syncTimes = metrics.histogram("cache.sync");
+        syncRows = metrics.counter("cache.sync.rows");
+        db = new Database(context, dbName, metrics);
+        if (writeBehind)
+            writer = new DatabaseWriter(db, metrics);
     }
 
     /**
@@ -74,11 +239,21 @@ class Cache {
      * dirty, then it is sync'd to the on flash database.
      */
     public void close() {
-        synchronized (this) {
+        synchronized (syncLock) {
             this.sync();
             this.clear();
-            db.close();
-            db = null;
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            dbLock.writeLock().lock();
+            try {
+                if (db != null)
+                    db.close();
+                db = null;
+            } finally {
+                dbLock.writeLock().unlock();
+            }
         }
     }
 
@@ -87,7 +262,8 @@ class Cache {
      *
      * If the emitter does not exist in the cache, it is
      * added (from the database if known or a new "unknown"
-     * entry is created).
+     * entry is created). The emitter is pinned in the cache
+     * until the next sync().
      *
      * @param id
      * @return the emitter
@@ -97,20 +273,122 @@ class Cache {
         if (id == null)
             return null;
 
-        synchronized (this) {
+        Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
             if (db == null)
                 return null;
-            String key = id.toString();
-            RfEmitter rslt = workingSet.get(key);
-            if (rslt == null) {
-                rslt = db.getEmitter(id);
-                if (rslt == null)
-                    rslt = new RfEmitter(id);
-                workingSet.put(key, rslt);
-                //Log.d(TAG,"get('"+key+"') - Added to cache.");
-            }
-            rslt.resetAge();
+            RfEmitter rslt = stripe.lookup(id);
+            if (rslt != null)
+                return rslt;
+        }
+
+        List<RfIdentification> ids = new ArrayList<>(1);
+        ids.add(id);
+        Map<RfIdentification, RfEmitter> found = load(ids);
+        if (found == null)
+            return null;
+        synchronized (stripe) {
+            //Log.d(TAG,"get('"+id+"') - Added to cache.");
+            return stripe.add(id, found.get(id), writer);
+        }
+    }
+
+    /**
+     * Queries the cache for a number of emitters at once. Emitters found in
+     * memory are returned directly and all the others are looked up in the
+     * database together.
+     *
+     * As with get(), emitters that are not in the database are added as new
+     * "unknown" entries and all the emitters returned are pinned until the
+     * next sync(). So a call for more emitters than the cache holds makes it
+     * grow rather than evicting emitters the caller is about to change.
+     *
+     * @param ids The identifications of the emitters wanted
+     * @return A map from identification to emitter for each of the ids
+     */
+    public Map<RfIdentification, RfEmitter> getAll(Collection<RfIdentification> ids) {
+        Map<RfIdentification, RfEmitter> rslt = new HashMap<>();
+        if ((ids == null) || (db == null))
             return rslt;
+
+        long start = System.nanoTime();
+        List<RfIdentification> missing = new ArrayList<>();
+        for (RfIdentification id : ids) {
+            if ((id == null) || rslt.containsKey(id))
+                continue;
+            Stripe stripe = stripeFor(id);
+            RfEmitter e;
+            synchronized (stripe) {
+                e = stripe.lookup(id);
+            }
+            if (e != null)
+                rslt.put(id, e);
+            else
+                missing.add(id);
+        }
+
+        if (!missing.isEmpty()) {
+            Map<RfIdentification, RfEmitter> found = load(missing);
+            if (found == null)
+                return rslt;
+            for (RfIdentification id : missing) {
+                Stripe stripe = stripeFor(id);
+                synchronized (stripe) {
+                    rslt.put(id, stripe.add(id, found.get(id), writer));
+                }
+            }
+        }
+        getAllTimes.since(start);
+        return rslt;
+    }
+
+    /**
+     * Get the saved information for emitters not in memory. Emitters with changes
+     * waiting for the writer thread can't be read from the database, for them the
+     * pending changes are used.
+     *
+     * No stripe lock is held while reading, so the database may be written while
+     * we read it. If so what we read may be stale and we read it again.
+     *
+     * @param ids The identifications of the emitters wanted
+     * @return The emitters we have saved information for, or null if the cache is closed
+     */
+    private Map<RfIdentification, RfEmitter> load(List<RfIdentification> ids) {
+        long start = System.nanoTime();
+        dbLock.readLock().lock();
+        try {
+            Database database = db;
+            DatabaseWriter w = writer;
+            if (database == null)
+                return null;
+            while (true) {
+                long generation = writeGeneration();
+                Map<RfIdentification, RfEmitter> found = new HashMap<>();
+                List<RfIdentification> notPending = ids;
+                if (w != null) {
+                    notPending = new ArrayList<>(ids.size());
+                    for (RfIdentification id : ids) {
+                        DatabaseWriter.Pending p = w.getPending(id);
+                        if (p == null)
+                            notPending.add(id);
+                        else if (!p.isDropped())
+                            found.put(id, p.newEmitter());
+                    }
+                }
+                if (notPending.size() == 1) {
+                    RfEmitter e = database.getEmitter(notPending.get(0));
+                    if (e != null)
+                        found.put(notPending.get(0), e);
+                } else if (!notPending.isEmpty()) {
+                    found.putAll(database.getEmitters(notPending));
+                }
+                if (writeGeneration() == generation)
+                    return found;
+                loadRetries.inc();
+            }
+        } finally {
+            dbLock.readLock().unlock();
+            loadTimes.since(start);
         }
     }
 
@@ -118,66 +396,249 @@ class Cache {
      * Remove all entries from the cache.
      */
     private void clear() {
-        synchronized (this) {
-            workingSet.clear();
-            Log.d(TAG, "clear() - entry");
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.workingSet.clear();
+                stripe.pinned.clear();
+            }
         }
+        Log.d(TAG, "clear() - entry");
     }
 
     /**
-     * Updates the database entry for any new or changed emitters.
-     * Once the database has been synchronized, cull infrequently used
-     * entries. If our cache is still to big after culling, we reset
-     * our cache.
+     * Updates the database entry for any new or changed emitters. In write-behind
+     * mode the changes are queued for the writer thread.
+     *
+     * The changed emitters are collected while holding each stripe lock in turn
+     * and written without them. Then the emitters handed out since the last sync()
+     * are unpinned and anything over capacity evicted.
      */
     public void sync() {
-        synchronized (this) {
+        synchronized (syncLock) {
             if (db == null)
                 return;
-            boolean doSync = false;
-
-            // Scan all of our emitters to see
-            // 1. If any have dirty data to sync to the flash database
-            // 2. If any have been unused long enough to remove from cache
 
-            Set<RfIdentification> agedSet = new HashSet<>();
-            for (Map.Entry<String, RfEmitter> e : workingSet.entrySet()) {
-                RfEmitter rfE = e.getValue();
-                doSync |= rfE.syncNeeded();
+            // Scan all of our emitters to see if any have dirty data to sync to the
+            // flash database.
+            List<RfEmitter> dirty = new ArrayList<>();
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    for (RfEmitter rfE : stripe.workingSet.values()) {
+                        if (rfE.syncNeeded())
+                            dirty.add(rfE);
+                    }
+                }
+            }
+            if (!dirty.isEmpty())
+                write(dirty);
 
-                //Log.d(TAG,"sync('"+rfE.getRfIdent()+"') - Age: " + rfE.getAge());
-                if (rfE.getAge() >= MAX_AGE)
-                    agedSet.add(rfE.getRfIdent());
-                rfE.incrementAge();
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.pinned.clear();
+                    stripe.trim();
+                }
             }
+        }
+    }
 
-            if (doSync) {
+    /**
+     * Write changed emitters to the database, or queue them for the writer thread.
+     *
+     * @param dirty The emitters with changes
+     */
+    private void write(List<RfEmitter> dirty) {
+        long start = System.nanoTime();
+        if (writer != null) {
+            for (RfEmitter rfE : dirty) {
+                rfE.sync(writer);
+            }
+        } else {
+            dbLock.readLock().lock();
+            try {
                 db.beginTransaction();
-                for (Map.Entry<String, RfEmitter> e : workingSet.entrySet()) {
-                    e.getValue().sync(db);
+                for (RfEmitter rfE : dirty) {
+                    rfE.sync(db);
                 }
                 db.endTransaction();
+                directWrites.incrementAndGet();
+            } finally {
+                dbLock.readLock().unlock();
+            }
+        }
+        syncTimes.since(start);
+        syncRows.add(dirty.size());
+    }
+
+    /**
+     * Get the emitters of several types, each within its own bounding box.
+     *
+     * @param areas The bounding box for each type of emitter wanted
+     * @return The identifications of the emitters found, or null if the cache is closed
+     */
+    public HashSet<RfIdentification> getEmitters(Map<EmitterType, BoundingBox> areas) {
+        dbLock.readLock().lock();
+        try {
+            if (db == null)
+                return null;
+            return db.getEmitters(areas);
+        } finally {
+            dbLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load all the emitters in an area into the cache ahead of their being seen.
+     *
+     * Emitters already in the cache, or with changes not yet written to the
+     * database, are left alone. Adding emitters may evict others, but never
+     * pinned emitters or ones with unwritten changes. If the database was
+     * written while we were reading it the result may be stale and is thrown away.
+     *
+     * At most half the cache is loaded, the emitters nearest a point first.
+     *
+     * @param bb The area to load
+     * @param lat Latitude of the point
+     * @param lon Longitude of the point
+     * @return True if all the emitters in the area were loaded, false if the
+     * area held more than we load or could not be loaded at all
+     */
+    public boolean prefetch(BoundingBox bb, double lat, double lon) {
+        Map<RfIdentification, RfEmitter> found;
+
+        // Don't let a prefetch push more than half of the cache out. Ask for one
+        // more than that to find out whether there were more.
+        int limit = capacity / 2;
+        dbLock.readLock().lock();
+        try {
+            if (db == null)
+                return false;
+            long generation = writeGeneration();
+            found = db.getEmitters(bb, lat, lon, limit + 1);
+            if (writeGeneration() != generation)
+                return false;
+        } finally {
+            dbLock.readLock().unlock();
+        }
+
+        // Add the farthest first, so the nearest are the last to be evicted.
+        List<RfEmitter> nearest = new ArrayList<>(found.values());
+        if (nearest.size() > limit)
+            nearest = nearest.subList(0, limit);
+        DatabaseWriter w = writer;
+        int added = 0;
+        for (int i = nearest.size() - 1; i >= 0; i--) {
+            RfEmitter emitter = nearest.get(i);
+            RfIdentification id = emitter.getRfIdent();
+            Stripe stripe = stripeFor(id);
+            synchronized (stripe) {
+                if (stripe.workingSet.containsKey(id))
+                    continue;
+                if ((w != null) && (w.getPending(id) != null))
+                    continue;
+                stripe.workingSet.put(id, emitter);
+                stripe.prefetched++;
+                added++;
             }
+        }
+        Log.d(TAG, "prefetch() - " + added + " emitters added" +
+                ((found.size() > limit) ? ", area truncated." : "."));
+        return found.size() <= limit;
+    }
+
+    /**
+     * @return A count that changes whenever emitters are written to the database.
+     */
+    private long writeGeneration() {
+        DatabaseWriter w = writer;
+        return directWrites.get() + ((w == null) ? 0 : w.getCommits());
+    }
+
+    private Stripe stripeFor(RfIdentification id) {
+        return stripes[(id.hashCode() & 0x7fffffff) % STRIPES];
+    }
 
-            // Remove aged out items from cache
-            for (RfIdentification id : agedSet) {
-                String key = id.toString();
-                //Log.d(TAG,"sync('"+key+"') - Aged out, removed from cache.");
-                workingSet.remove(key);
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        int rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.workingSet.size();
             }
+        }
+        return rslt;
+    }
 
-            if (workingSet.size() > MAX_WORKING_SET_SIZE) {
-                Log.d(TAG, "sync() - Clearing working set.");
-                workingSet.clear();
+    public long getHits() {
+        long rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.hits;
             }
         }
+        return rslt;
     }
 
-    public HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb) {
-        synchronized (this) {
-            if (db == null)
-                return null;
-            return db.getEmitters(rfType, bb);
+    public long getMisses() {
+        long rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.misses;
+            }
+        }
+        return rslt;
+    }
+
+    public long getEvictions() {
+        long rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.evictions;
+            }
+        }
+        return rslt;
+    }
+
+    public int getPinned() {
+        int rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.pinned.size();
+            }
+        }
+        return rslt;
+    }
+
+    public long getPrefetched() {
+        long rslt = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rslt += stripe.prefetched;
+            }
+        }
+        return rslt;
+    }
+
+    /**
+     * Write the state of the cache and its database to a diagnostics dump.
+     *
+     * @param writer Where to write the information
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Cache: size " + getSize() + " of " + capacity +
+                " in " + STRIPES + " stripes" +
+                ", hits " + getHits() + ", misses " + getMisses() +
+                ", evictions " + getEvictions() + ", pinned " + getPinned() +
+                ", prefetched " + getPrefetched());
+        writer.println("  write behind: " + (this.writer != null));
+        dbLock.readLock().lock();
+        try {
+            if (db != null)
+                db.dump(writer);
+        } finally {
+            dbLock.readLock().unlock();
         }
     }
 }
@@ -0,0 +1,49 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+
+/**
+ * Where the processing pipeline gets the time from. Normally the system clocks,
+ * when replaying a trace the times recorded in it.
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    /**
+     * @return The wall clock time in milliseconds
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return The time since boot in nanoseconds
+     */
+    long elapsedRealtimeNanos();
+}
@@ -25,27 +25,54 @@ package org.fitchfamily.android.dejavu;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface to our on flash SQL database. Note that these methods are not
  * thread safe. However all access to the database is through the Cache object
  * which is thread safe.
  */
-class Database extends SQLiteOpenHelper {
+class Database extends SQLiteOpenHelper implements EmitterSink {
     private static final String TAG = "DejaVu DB";
 
-    private static final int VERSION = 3;
-    private static final String NAME = "rf.db";
+    private static final int VERSION = 8;
+    static final String NAME = "rf.db";
+
+    // Default SQLITE_MAX_VARIABLE_NUMBER, the most parameters a query may have.
+    private static final int MAX_QUERY_ARGS = 999;
+
+    // Default connection settings. We run in write-ahead-log mode so that reads
+    // are not blocked by the transaction writing emitter changes.
+    static final String DEFAULT_SYNCHRONOUS = "NORMAL";     // Durable in WAL mode except on power loss
+    static final int DEFAULT_CACHE_SIZE_KB = 2048;          // Page cache size in kilobytes
+    static final long DEFAULT_MMAP_SIZE = 8 * 1024 * 1024;  // Bytes of database to memory map
 
     private static final String TABLE_SAMPLES = "emitters";
+    private static final String TABLE_RTREE = "emitters_rtree";     // v4 of database
+    private static final String INDEX_TYPE_LOC = "emitters_type_loc";  // v4 to v6 of database
+    private static final String INDEX_TYPE_ZKEY = "emitters_type_zkey";  // v7 of database
+    private static final String INDEX_TYPE_ID_ZKEY = "emitters_typeid_zkey";  // v8 of database
 
-    private static final String COL_HASH = "rfHash";        // v3 of database
+    private static final String COL_HASH = "rfHash";        // v3 of database, binary since v6
     private static final String COL_TYPE = "rfType";
     private static final String COL_RFID = "rfID";
     private static final String COL_TRUST = "trust";
@@ -55,8 +82,28 @@ class Database extends SQLiteOpenHelper {
     private static final String COL_RAD_NS = "radius_ns";    // v2 of database
     private static final String COL_RAD_EW = "radius_ew";    // v2 of database
     private static final String COL_NOTE = "note";
+    private static final String COL_ZKEY = "zkey";          // v7 of database
+    private static final String COL_TYPE_ID = "rfTypeId";   // v8 of database
+
+    // Values of the type id column
+    private static final int TYPE_ID_INVALID = 0;
+    private static final int TYPE_ID_WLAN_24GHZ = 1;
+    private static final int TYPE_ID_WLAN_5GHZ = 2;
+    private static final int TYPE_ID_MOBILE = 3;
+
+    // Columns of the R*Tree spatial index (v4 of database)
+    private static final String COL_RT_ID = "id";
+    private static final String COL_RT_MIN_LAT = "minLat";
+    private static final String COL_RT_MAX_LAT = "maxLat";
+    private static final String COL_RT_MIN_LON = "minLon";
+    private static final String COL_RT_MAX_LON = "maxLon";
+
+    private final String synchronous;
+    private final int cacheSizeKb;
+    private final long mmapSize;
 
     private SQLiteDatabase database;
+    private boolean hasSpatialIndex;
     private boolean withinTransaction;
     private boolean updatesMade;
 
@@ -64,7 +111,17 @@ class Database extends SQLiteOpenHelper {
     private SQLiteStatement sqlSampleUpdate;
     private SQLiteStatement sqlAPdrop;
 
-    public class EmitterInfo {
+    // Time taken by each kind of query, in total for all the chunks of an id query.
+    private final Metrics.Histogram areaQueries;
+    private final Metrics.Histogram boxQueries;
+    private final Metrics.Histogram idQueries;
+    private final Metrics.Counter rowsRead;
+    private final Metrics.Histogram commits;
+    private final Metrics.Counter inserts;
+    private final Metrics.Counter updates;
+    private final Metrics.Counter drops;
+
+    public static class EmitterInfo {
         public double latitude;
         public double longitude;
         public float radius_ns;
@@ -74,7 +131,82 @@ class Database extends SQLiteOpenHelper {
     }
 
     public Database(Context context) {
-        super(context, NAME, null, VERSION);
+        this(context, NAME, new Metrics());
+    }
+
+    /**
+     * @param context The context to open the database in
+     * @param name The name of the database file
+     * @param metrics Where to count our queries and writes
+     */
+    public Database(Context context, String name, Metrics metrics) {
+        this(context, name, metrics, DEFAULT_SYNCHRONOUS, DEFAULT_CACHE_SIZE_KB, DEFAULT_MMAP_SIZE);
+    }
+
+    /**
+     * @param context The context to open the database in
+     * @param name The name of the database file
+     * @param metrics Where to count our queries and writes
+     * @param synchronous The SQLite synchronous level (OFF, NORMAL, FULL)
+     * @param cacheSizeKb The page cache size in kilobytes
+     * @param mmapSize The maximum number of bytes of the database to memory map.
+     *                 Zero disables memory mapping.
+     */
+    public Database(Context context, String name, Metrics metrics,
+                    String synchronous, int cacheSizeKb, long mmapSize) {
+        super(context, name, null, VERSION);
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+        // The open parameters replace the open flags, so set them before enabling WAL.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            setOpenParams(new SQLiteDatabase.OpenParams.Builder()
+                    .setSynchronousMode(synchronous)
+                    .build());
+        setWriteAheadLoggingEnabled(true);
+
+        areaQueries = metrics.histogram("db.query.area");
+        boxQueries = metrics.histogram("db.query.prefetch");
+        idQueries = metrics.histogram("db.query.id");
+        rowsRead = metrics.counter("db.rows.read");
+        commits = metrics.histogram("db.commit");
+        inserts = metrics.counter("db.rows.inserted");
+        updates = metrics.counter("db.rows.updated");
+        drops = metrics.counter("db.rows.dropped");
+    }
+
+    /**
+     * Called when the database connection is being configured, before the schema
+     * is created or upgraded.
+     *
+     * These settings are per connection, and in WAL mode Android keeps a pool of them:
+     * the primary connection, which does all the writing, and reader connections opened
+     * as needed. A PRAGMA doesn't write, so the framework may run it on any connection
+     * in the pool. Statements in a transaction all run on the primary connection, so
+     * cache_size and mmap_size are set in one. The synchronous level can't be changed
+     * in a transaction. From Android 9 it is passed in the open parameters and applied
+     * to every connection; before that every connection gets the platform's WAL
+     * default. Reader connections keep SQLite's default cache_size and mmap_size.
+     *
+     * @param db The database
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (db.isReadOnly())
+            return;
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                pragma(db, "cache_size=-" + cacheSizeKb);
+                pragma(db, "mmap_size=" + mmapSize);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "onConfigure() - Can't configure primary connection: " + e.getMessage());
+        }
     }
 
     @Override
@@ -103,6 +235,16 @@ class Database extends SQLiteOpenHelper {
             upGradeToVersion2(db);
         if (oldVersion < 3)
             upGradeToVersion3(db);
+        if (oldVersion < 4)
+            upGradeToVersion4(db);
+        if (oldVersion < 5)
+            upGradeToVersion5(db);
+        if (oldVersion < 6)
+            upGradeToVersion6(db);
+        if (oldVersion < 7)
+            upGradeToVersion7(db);
+        if (oldVersion < 8)
+            upGradeToVersion8(db);
     }
 
     private void upGradeToVersion2(SQLiteDatabase db) {
@@ -187,7 +329,7 @@ class Database extends SQLiteOpenHelper {
                     String rfId = cursor.getString(0);
                     String rftype = cursor.getString(1);
                     if (rftype.equals("WLAN"))
-                        rftype = RfEmitter.EmitterType.WLAN_24GHZ.toString();
+                        rftype = EmitterType.WLAN_24GHZ.toString();
                     RfIdentification rfid = new RfIdentification(rfId, RfEmitter.typeOf(rftype));
                     String hash = rfid.getUniqueId();
 
@@ -217,9 +359,254 @@ class Database extends SQLiteOpenHelper {
         db.execSQL("COMMIT;");
     }
 
+    private void upGradeToVersion4(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion4(): Entry");
+
+        // Bounding box queries used to be full table scans. Add a plain B-tree index that
+        // every SQLite build supports and, if the platform SQLite has the R*Tree module,
+        // a spatial index on the emitter locations.
+
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TYPE_LOC + " ON " +
+                TABLE_SAMPLES + "(" +
+                COL_TYPE + ", " +
+                COL_LAT + ", " +
+                COL_LON + ");");
+        db.execSQL("COMMIT;");
+
+        createSpatialIndex(db);
+    }
+
+    private void upGradeToVersion5(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion5(): Entry");
+
+        // Prior versions bound all values as strings. SQLite type affinity will have
+        // converted most of them but values that are not well formed numbers (e.g. "NaN")
+        // were left as text. Convert any such values so all rows hold typed data.
+
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("UPDATE " + TABLE_SAMPLES + " SET " +
+                COL_TRUST + "=CAST(" + COL_TRUST + " AS INTEGER), " +
+                COL_LAT + "=CAST(" + COL_LAT + " AS REAL), " +
+                COL_LON + "=CAST(" + COL_LON + " AS REAL), " +
+                COL_RAD_NS + "=CAST(" + COL_RAD_NS + " AS REAL), " +
+                COL_RAD_EW + "=CAST(" + COL_RAD_EW + " AS REAL)" +
+                " WHERE typeof(" + COL_TRUST + ")<>'integer'" +
+                " OR typeof(" + COL_LAT + ")<>'real'" +
+                " OR typeof(" + COL_LON + ")<>'real'" +
+                " OR typeof(" + COL_RAD_NS + ")<>'real'" +
+                " OR typeof(" + COL_RAD_EW + ")<>'real';");
+        db.execSQL("COMMIT;");
+    }
+
+    private void upGradeToVersion6(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion6(): Entry");
+
+        // Our key field changes from a hex text string to the 16 byte binary form
+        // of the same hash. Sqlite3 can't change the type of a column so we create
+        // a new table and copy the old data into it.
+
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SAMPLES + "_new (" +
+                COL_HASH + " BLOB PRIMARY KEY, " +
+                COL_RFID + " TEXT, " +
+                COL_TYPE + " TEXT, " +
+                COL_TRUST + " INTEGER, " +
+                COL_LAT + " REAL, " +
+                COL_LON + " REAL, " +
+                COL_RAD_NS + " REAL, " +
+                COL_RAD_EW + " REAL, " +
+                COL_NOTE + " TEXT);");
+
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " +
+                TABLE_SAMPLES + "_new("+
+                COL_HASH + ", " +
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD_NS + ", " +
+                COL_RAD_EW + ", " +
+                COL_NOTE + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+
+        String query = "SELECT " +
+                COL_RFID+","+COL_TYPE+","+COL_TRUST+","+COL_LAT+","+COL_LON+","+COL_RAD_NS+","+COL_RAD_EW+","+COL_NOTE+" "+
+                "FROM " + TABLE_SAMPLES + ";";
+
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    String rfId = cursor.getString(0);
+                    String rftype = cursor.getString(1);
+                    RfIdentification rfid = new RfIdentification(rfId, RfEmitter.typeOf(rftype));
+
+                    insert.bindBlob(1, rfid.getUniqueKey());
+                    insert.bindString(2, rfId);
+                    insert.bindString(3, rftype);
+                    insert.bindLong(4, cursor.getLong(2));
+                    insert.bindDouble(5, cursor.getDouble(3));
+                    insert.bindDouble(6, cursor.getDouble(4));
+                    insert.bindDouble(7, cursor.getDouble(5));
+                    insert.bindDouble(8, cursor.getDouble(6));
+                    if (cursor.isNull(7))
+                        insert.bindNull(9);
+                    else
+                        insert.bindString(9, cursor.getString(7));
+
+                    insert.executeInsert();
+                    insert.clearBindings();
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        db.execSQL("DROP TABLE " + TABLE_SAMPLES + ";");
+        db.execSQL("ALTER TABLE " + TABLE_SAMPLES + "_new RENAME TO " + TABLE_SAMPLES + ";");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TYPE_LOC + " ON " +
+                TABLE_SAMPLES + "(" +
+                COL_TYPE + ", " +
+                COL_LAT + ", " +
+                COL_LON + ");");
+        db.execSQL("COMMIT;");
+
+        // The rowids have changed and the triggers went with the old table, so
+        // the spatial index needs to be rebuilt.
+        createSpatialIndex(db);
+    }
+
+    private void upGradeToVersion7(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion7(): Entry");
+
+        // A latitude, longitude index can only narrow a bounding box query on latitude.
+        // Add a Z-order key combining both (see SpatialKey) and index it instead, so
+        // bounding box queries are fast without the R*Tree. The key is computed in Java
+        // so existing rows are filled in one at a time.
+
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("ALTER TABLE " + TABLE_SAMPLES + " ADD COLUMN " + COL_ZKEY + " INTEGER;");
+
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_SAMPLES +
+                " SET " + COL_ZKEY + "=? WHERE rowid=?;");
+        Cursor cursor = db.rawQuery("SELECT rowid, " + COL_LAT + ", " + COL_LON +
+                " FROM " + TABLE_SAMPLES + ";", null);
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    update.bindLong(1, SpatialKey.of(cursor.getDouble(1), cursor.getDouble(2)));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                    update.clearBindings();
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_TYPE_LOC + ";");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TYPE_ZKEY + " ON " +
+                TABLE_SAMPLES + "(" +
+                COL_TYPE + ", " +
+                COL_ZKEY + ");");
+        db.execSQL("COMMIT;");
+    }
+
+    private void upGradeToVersion8(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion8(): Entry");
+
+        // Every query is for particular types of emitter. Comparing a repeated text
+        // string is slow and bloats the index, so add a small integer for the type
+        // and lead the spatial key index with it. The text column is kept for
+        // reading the type back.
+
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("ALTER TABLE " + TABLE_SAMPLES + " ADD COLUMN " + COL_TYPE_ID + " INTEGER;");
+        db.execSQL("UPDATE " + TABLE_SAMPLES + " SET " + COL_TYPE_ID + "=CASE " + COL_TYPE +
+                " WHEN '" + EmitterType.WLAN_24GHZ + "' THEN " + TYPE_ID_WLAN_24GHZ +
+                " WHEN '" + EmitterType.WLAN_5GHZ + "' THEN " + TYPE_ID_WLAN_5GHZ +
+                " WHEN '" + EmitterType.MOBILE + "' THEN " + TYPE_ID_MOBILE +
+                " ELSE " + TYPE_ID_INVALID + " END;");
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_TYPE_ZKEY + ";");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TYPE_ID_ZKEY + " ON " +
+                TABLE_SAMPLES + "(" +
+                COL_TYPE_ID + ", " +
+                COL_ZKEY + ");");
+        db.execSQL("COMMIT;");
+    }
+
+    /**
+     * Create and populate the R*Tree spatial index on the emitter locations. The index
+     * is keyed on the rowid of the emitters table and is kept in sync with the emitters
+     * table by triggers so the insert, update and drop code paths need not know about it.
+     *
+     * Not all Android builds of SQLite include the R*Tree module. If it is missing we
+     * log the fact and continue with only the B-tree index.
+     *
+     * @param db The database to add the spatial index to.
+     * @return True if the spatial index exists.
+     */
+    private boolean createSpatialIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_RTREE + " USING rtree(" +
+                    COL_RT_ID + ", " +
+                    COL_RT_MIN_LAT + ", " +
+                    COL_RT_MAX_LAT + ", " +
+                    COL_RT_MIN_LON + ", " +
+                    COL_RT_MAX_LON + ");");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "createSpatialIndex(): R*Tree not available: " + e.getMessage());
+            return false;
+        }
+
+        // Note: The rowid of the emitters table is not an alias for an INTEGER PRIMARY KEY
+        // so a VACUUM could renumber it. We never VACUUM the database but if that ever
+        // changes the spatial index will need to be rebuilt afterwards.
+        db.execSQL("BEGIN TRANSACTION;");
+        db.execSQL("DELETE FROM " + TABLE_RTREE + ";");
+        db.execSQL("INSERT INTO " + TABLE_RTREE + " SELECT rowid, " +
+                COL_LAT + ", " + COL_LAT + ", " + COL_LON + ", " + COL_LON +
+                " FROM " + TABLE_SAMPLES + ";");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_RTREE + "_insert AFTER INSERT ON " +
+                TABLE_SAMPLES + " BEGIN INSERT INTO " + TABLE_RTREE + " VALUES (" +
+                "new.rowid, new." + COL_LAT + ", new." + COL_LAT + ", new." + COL_LON + ", new." + COL_LON +
+                "); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_RTREE + "_update AFTER UPDATE OF " +
+                COL_LAT + ", " + COL_LON + " ON " + TABLE_SAMPLES + " BEGIN UPDATE " + TABLE_RTREE + " SET " +
+                COL_RT_MIN_LAT + "=new." + COL_LAT + ", " +
+                COL_RT_MAX_LAT + "=new." + COL_LAT + ", " +
+                COL_RT_MIN_LON + "=new." + COL_LON + ", " +
+                COL_RT_MAX_LON + "=new." + COL_LON +
+                " WHERE " + COL_RT_ID + "=new.rowid; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_RTREE + "_delete AFTER DELETE ON " +
+                TABLE_SAMPLES + " BEGIN DELETE FROM " + TABLE_RTREE +
+                " WHERE " + COL_RT_ID + "=old.rowid; END;");
+        db.execSQL("COMMIT;");
+        return true;
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
+
+        // Determine if our spatial index was able to be created on this device.
+        hasSpatialIndex = false;
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name='" +
+                TABLE_RTREE + "';", null);
+        try {
+            hasSpatialIndex = cursor.moveToFirst();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "onOpen(): Spatial index " + (hasSpatialIndex ? "available." : "not available."));
     }
 
     /**
@@ -250,8 +637,10 @@ class Database extends SQLiteOpenHelper {
                 COL_LON + ", " +
                 COL_RAD_NS + ", " +
                 COL_RAD_EW + ", " +
-                COL_NOTE + ") " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+                COL_NOTE + ", " +
+                COL_ZKEY + ", " +
+                COL_TYPE_ID + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
 
         sqlSampleUpdate = database.compileStatement("UPDATE " +
                 TABLE_SAMPLES + " SET "+
@@ -260,14 +649,15 @@ class Database extends SQLiteOpenHelper {
                 COL_LON + "=?, " +
                 COL_RAD_NS + "=?, " +
                 COL_RAD_EW + "=?, " +
-                COL_NOTE + "=? " +
+                COL_NOTE + "=?, " +
+                COL_ZKEY + "=? " +
                 "WHERE " + COL_HASH + "=?;");
 
         sqlAPdrop = database.compileStatement("DELETE FROM " +
                 TABLE_SAMPLES +
                 " WHERE " + COL_HASH + "=?;");
 
-        database.beginTransaction();
+        database.beginTransactionNonExclusive();
     }
 
     /**
@@ -286,22 +676,34 @@ class Database extends SQLiteOpenHelper {
             database.setTransactionSuccessful();
         }
         updatesMade = false;
+        long start = System.nanoTime();
         database.endTransaction();
+        commits.since(start);
         withinTransaction = false;
     }
 
+    /**
+     * End a transaction without committing it, rolling back any changes made in it.
+     */
+    public void abortTransaction() {
+        updatesMade = false;
+        endTransaction();
+    }
+
     /**
      * Drop an RF emitter from the database.
      *
      * @param emitter The emitter to be dropped.
      */
+    @Override
     public void drop(RfEmitter emitter) {
         //Log.d(TAG, "Dropping " + emitter.logString() + " from db");
 
-        sqlAPdrop.bindString(1, emitter.getUniqueId());
+        sqlAPdrop.bindBlob(1, emitter.getUniqueKey());
         sqlAPdrop.executeInsert();
         sqlAPdrop.clearBindings();
         updatesMade = true;
+        drops.inc();
     }
 
     /**
@@ -309,21 +711,25 @@ class Database extends SQLiteOpenHelper {
      *
      * @param emitter The emitter to be added.
      */
+    @Override
     public void insert(RfEmitter emitter) {
         Log.d(TAG, "Inserting " + emitter.logString() + " into db");
-        sqlSampleInsert.bindString(1, emitter.getUniqueId());
+        sqlSampleInsert.bindBlob(1, emitter.getUniqueKey());
         sqlSampleInsert.bindString(2, emitter.getId());
-        sqlSampleInsert.bindString(3, String.valueOf(emitter.getType()));
-        sqlSampleInsert.bindString(4, String.valueOf(emitter.getTrust()));
-        sqlSampleInsert.bindString(5, String.valueOf(emitter.getLat()));
-        sqlSampleInsert.bindString(6, String.valueOf(emitter.getLon()));
-        sqlSampleInsert.bindString(7, String.valueOf(emitter.getRadiusNS()));
-        sqlSampleInsert.bindString(8, String.valueOf(emitter.getRadiusEW()));
+        sqlSampleInsert.bindString(3, emitter.getTypeString());
+        sqlSampleInsert.bindLong(4, emitter.getTrust());
+        sqlSampleInsert.bindDouble(5, emitter.getLat());
+        sqlSampleInsert.bindDouble(6, emitter.getLon());
+        sqlSampleInsert.bindDouble(7, emitter.getRadiusNS());
+        sqlSampleInsert.bindDouble(8, emitter.getRadiusEW());
         sqlSampleInsert.bindString(9, emitter.getNote());
+        sqlSampleInsert.bindLong(10, SpatialKey.of(emitter.getLat(), emitter.getLon()));
+        sqlSampleInsert.bindLong(11, typeId(emitter.getType()));
 
         sqlSampleInsert.executeInsert();
         sqlSampleInsert.clearBindings();
         updatesMade = true;
+        inserts.inc();
     }
 
     /**
@@ -331,22 +737,25 @@ class Database extends SQLiteOpenHelper {
      *
      * @param emitter The emitter to be updated
      */
+    @Override
     public void update(RfEmitter emitter) {
         //Log.d(TAG, "Updating " + emitter.logString() + " in db");
 
         // the data fields
-        sqlSampleUpdate.bindString(1, String.valueOf(emitter.getTrust()));
-        sqlSampleUpdate.bindString(2, String.valueOf(emitter.getLat()));
-        sqlSampleUpdate.bindString(3, String.valueOf(emitter.getLon()));
-        sqlSampleUpdate.bindString(4, String.valueOf(emitter.getRadiusNS()));
-        sqlSampleUpdate.bindString(5, String.valueOf(emitter.getRadiusEW()));
+        sqlSampleUpdate.bindLong(1, emitter.getTrust());
+        sqlSampleUpdate.bindDouble(2, emitter.getLat());
+        sqlSampleUpdate.bindDouble(3, emitter.getLon());
+        sqlSampleUpdate.bindDouble(4, emitter.getRadiusNS());
+        sqlSampleUpdate.bindDouble(5, emitter.getRadiusEW());
         sqlSampleUpdate.bindString(6, emitter.getNote());
+        sqlSampleUpdate.bindLong(7, SpatialKey.of(emitter.getLat(), emitter.getLon()));
 
         // the Where fields
-        sqlSampleUpdate.bindString(7, emitter.getUniqueId());
+        sqlSampleUpdate.bindBlob(8, emitter.getUniqueKey());
         sqlSampleUpdate.executeInsert();
         sqlSampleUpdate.clearBindings();
         updatesMade = true;
+        updates.inc();
     }
 
     /**
@@ -356,23 +765,42 @@ class Database extends SQLiteOpenHelper {
      * @param bb The lat,lon bounding box.
      * @return A collection of RF emitter identifications
      */
-    public HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb) {
+    public HashSet<RfIdentification> getEmitters(EmitterType rfType, BoundingBox bb) {
+        return getEmitters(Collections.singletonMap(rfType, bb));
+    }
+
+    /**
+     * Return a list of all emitters of several types, each within its own bounding
+     * box, in a single query. Different types of emitters have very different ranges
+     * so the area they are expected in differs too.
+     *
+     * @param areas The bounding box for each type of emitter the caller is interested in
+     * @return A collection of RF emitter identifications
+     */
+    public HashSet<RfIdentification> getEmitters(Map<EmitterType, BoundingBox> areas) {
         HashSet<RfIdentification> rslt = new HashSet<>();
-        String query = "SELECT " +
-                COL_RFID + " " +
-                " FROM " + TABLE_SAMPLES +
-                " WHERE " + COL_TYPE + "='" + rfType +
-                "' AND " + COL_LAT + ">='" + bb.getSouth() +
-                "' AND " + COL_LAT + "<='" + bb.getNorth() +
-                "' AND " + COL_LON + ">='" + bb.getWest() +
-                "' AND " + COL_LON + "<='" + bb.getEast() + "';";
+        if (areas.isEmpty())
+            return rslt;
+
+        // One select for each type, each able to use the index on its own.
+        List<Object> args = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<EmitterType, BoundingBox> area : areas.entrySet()) {
+            if (query.length() > 0)
+                query.append(" UNION ALL ");
+            query.append("SELECT e." + COL_RFID + ", e." + COL_TYPE + " ");
+            query.append(boxQuery(area.getKey(), area.getValue(), args));
+        }
+        query.append(";");
 
         //Log.d(TAG, "getEmitters(): query='"+query+"'");
-        Cursor cursor = getReadableDatabase().rawQuery(query, null);
+        long start = System.nanoTime();
+        Cursor cursor = query(query.toString(), args.toArray());
         try {
             if (cursor.moveToFirst()) {
                 do {
-                    RfIdentification e = new RfIdentification(cursor.getString(0), rfType);
+                    RfIdentification e = new RfIdentification(cursor.getString(0),
+                            RfEmitter.typeOf(cursor.getString(1)));
                     rslt.add(e);
                 } while (cursor.moveToNext());
             }
@@ -381,9 +809,155 @@ class Database extends SQLiteOpenHelper {
                 cursor.close();
             }
         }
+        areaQueries.since(start);
+        rowsRead.add(rslt.size());
         return rslt;
     }
 
+    /**
+     * Get all the information we have on the RF emitters of every type within a
+     * bounding box. If there are more than the limit, the ones nearest a point
+     * are returned.
+     *
+     * @param bb The bounding box
+     * @param lat Latitude of the point
+     * @param lon Longitude of the point
+     * @param limit The maximum number of emitters to return
+     * @return A map of emitter objects for the emitters in the bounding box,
+     * nearest the point first
+     */
+    public Map<RfIdentification, RfEmitter> getEmitters(BoundingBox bb, double lat, double lon, int limit) {
+        Map<RfIdentification, RfEmitter> rslt = new LinkedHashMap<>();
+        String columns = "SELECT e." + COL_RFID + ", " +
+                "e." + COL_TYPE + ", " +
+                "e." + COL_TRUST + ", " +
+                "e." + COL_LAT + ", " +
+                "e." + COL_LON + ", " +
+                "e." + COL_RAD_NS + ", " +
+                "e." + COL_RAD_EW + ", " +
+                "e." + COL_NOTE + " ";
+
+        List<Object> args = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        for (EmitterType rfType : EmitterType.values()) {
+            if (rfType == EmitterType.INVALID)
+                continue;
+            if (query.length() > 0)
+                query.append(" UNION ALL ");
+            query.append(columns);
+            query.append(boxQuery(rfType, bb, args));
+        }
+
+        // A compound select can only be ordered by its columns, so order the whole of it.
+        // The squared flat earth distance (in degrees of latitude) is enough to sort by.
+        args.add(lat);
+        int point = args.size();
+        args.add(lon);
+        args.add(Geometry.cosLat(lat));
+        args.add(limit);
+        String dLat = "(" + COL_LAT + "-?" + point + ")";
+        String dLon = "((" + COL_LON + "-?" + (point + 1) + ")*?" + (point + 2) + ")";
+        query.insert(0, "SELECT * FROM (");
+        query.append(") ORDER BY " + dLat + "*" + dLat + "+" + dLon + "*" + dLon +
+                " LIMIT ?" + args.size() + ";");
+
+        long start = System.nanoTime();
+        Cursor cursor = query(query.toString(), args.toArray());
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    RfIdentification ident = new RfIdentification(cursor.getString(0),
+                            RfEmitter.typeOf(cursor.getString(1)));
+                    rslt.put(ident, newEmitter(ident, cursor, 2));
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        boxQueries.since(start);
+        rowsRead.add(rslt.size());
+        return rslt;
+    }
+
+    /**
+     * Build the FROM and WHERE parts of a query for the emitters of a type within a
+     * bounding box. The emitters table is named "e" for the select list.
+     *
+     * If we have the R*Tree we use it to find candidates. It stores its coordinates as
+     * 32 bit floats rounded outward, so we also check the exact location.
+     *
+     * Otherwise we use the index on type and spatial key. Each of the key ranges
+     * covering the box gets a term of its own so that SQLite can search the index once
+     * for each range. The ranges cover more than the bounding box, so again we check
+     * the exact location.
+     *
+     * @param rfType The type of emitter wanted
+     * @param bb The bounding box
+     * @param args The query arguments. The arguments for this part are added to the end.
+     * @return The FROM and WHERE clauses
+     */
+    private String boxQuery(EmitterType rfType, BoundingBox bb, List<Object> args) {
+        args.add(bb.getSouth());
+        int south = args.size();
+        args.add(bb.getNorth());
+        args.add(bb.getWest());
+        args.add(bb.getEast());
+        args.add(typeId(rfType));
+        int type = args.size();
+
+        String exact = " AND e." + COL_LAT + ">=?" + south +
+                " AND e." + COL_LAT + "<=?" + (south + 1) +
+                " AND e." + COL_LON + ">=?" + (south + 2) +
+                " AND e." + COL_LON + "<=?" + (south + 3);
+
+        if (hasSpatialIndex) {
+            return "FROM " + TABLE_RTREE + " AS r" +
+                    " JOIN " + TABLE_SAMPLES + " AS e ON e.rowid=r." + COL_RT_ID +
+                    " WHERE r." + COL_RT_MAX_LAT + ">=?" + south +
+                    " AND r." + COL_RT_MIN_LAT + "<=?" + (south + 1) +
+                    " AND r." + COL_RT_MAX_LON + ">=?" + (south + 2) +
+                    " AND r." + COL_RT_MIN_LON + "<=?" + (south + 3) +
+                    " AND e." + COL_TYPE_ID + "=?" + type +
+                    exact;
+        }
+
+        long[] ranges = SpatialKey.ranges(bb);
+        StringBuilder terms = new StringBuilder();
+        for (int i = 0; i < ranges.length; i += 2) {
+            args.add(ranges[i]);
+            args.add(ranges[i + 1]);
+            if (i > 0)
+                terms.append(" OR ");
+            terms.append("(e." + COL_TYPE_ID + "=?" + type +
+                    " AND e." + COL_ZKEY + " BETWEEN ?" + (args.size() - 1) +
+                    " AND ?" + args.size() + ")");
+        }
+        return "FROM " + TABLE_SAMPLES + " AS e" +
+                " WHERE (" + terms + ")" +
+                exact;
+    }
+
+    /**
+     * The integer stored for each type of emitter. These values are in the
+     * database so must never change.
+     *
+     * @param rfType The type of emitter
+     * @return The value stored in the type id column
+     */
+    private static int typeId(EmitterType rfType) {
+        switch (rfType) {
+            case WLAN_24GHZ:
+                return TYPE_ID_WLAN_24GHZ;
+            case WLAN_5GHZ:
+                return TYPE_ID_WLAN_5GHZ;
+            case MOBILE:
+                return TYPE_ID_MOBILE;
+        }
+        return TYPE_ID_INVALID;
+    }
+
     /**
      * Get all the information we have on an RF emitter
      *
@@ -402,24 +976,226 @@ class Database extends SQLiteOpenHelper {
                 COL_RAD_EW+ ", " +
                 COL_NOTE + " " +
                 " FROM " + TABLE_SAMPLES +
-                " WHERE " + COL_HASH + "='" + ident.getUniqueId() + "';";
+                " WHERE " + COL_HASH + "=?;";
 
         // Log.d(TAG, "getEmitter(): query='"+query+"'");
-        Cursor cursor = getReadableDatabase().rawQuery(query, null);
+        long start = System.nanoTime();
+        Cursor cursor = query(query, ident.getUniqueKey());
+        try {
+            if (cursor.moveToFirst()) {
+                rslt = newEmitter(ident, cursor, 1);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        idQueries.since(start);
+        if (rslt != null)
+            rowsRead.inc();
+        return rslt;
+    }
+
+    /**
+     * Get all the information we have on a number of RF emitters. Rather than
+     * one query per emitter we use as few "rfHash IN (...)" queries as the
+     * limit on the number of query parameters allows.
+     *
+     * @param idents The identifications of the emitters the caller wants
+     * @return A map of emitter objects for the emitters we have information on.
+     * Emitters not in the database are not in the map.
+     */
+    public Map<RfIdentification, RfEmitter> getEmitters(Collection<RfIdentification> idents) {
+        long start = System.nanoTime();
+        Map<RfIdentification, RfEmitter> rslt = new HashMap<>();
+        List<RfIdentification> chunk = new ArrayList<>(Math.min(idents.size(), MAX_QUERY_ARGS));
+
+        for (RfIdentification ident : idents) {
+            chunk.add(ident);
+            if (chunk.size() == MAX_QUERY_ARGS) {
+                getEmitterChunk(chunk, rslt);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty())
+            getEmitterChunk(chunk, rslt);
+        idQueries.since(start);
+        rowsRead.add(rslt.size());
+        return rslt;
+    }
+
+    /**
+     * Look up one query's worth of emitters, adding the ones found to a result map.
+     *
+     * @param idents The identifications of the emitters wanted
+     * @param rslt Map to add emitters found to
+     */
+    private void getEmitterChunk(List<RfIdentification> idents, Map<RfIdentification, RfEmitter> rslt) {
+        // The rows returned only have our binary key, so build a map to find
+        // the identification that goes with it.
+        Map<ByteBuffer, RfIdentification> wanted = new HashMap<>();
+        Object[] args = new Object[idents.size()];
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            RfIdentification ident = idents.get(i);
+            byte[] key = ident.getUniqueKey();
+            wanted.put(ByteBuffer.wrap(key), ident);
+            args[i] = key;
+            params.append((i == 0) ? "?" : ",?");
+        }
+
+        String query = "SELECT " +
+                COL_HASH + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD_NS+ ", " +
+                COL_RAD_EW+ ", " +
+                COL_NOTE + " " +
+                " FROM " + TABLE_SAMPLES +
+                " WHERE " + COL_HASH + " IN (" + params + ");";
+
+        Cursor cursor = query(query, args);
         try {
             if (cursor.moveToFirst()) {
-                rslt = new RfEmitter(ident);
-                EmitterInfo ei = new EmitterInfo();
-                ei.trust = (int) cursor.getLong(1);
-                ei.latitude = cursor.getDouble(2);
-                ei.longitude = cursor.getDouble(3);
-                ei.radius_ns = (float) cursor.getDouble(4);
-                ei.radius_ew = (float) cursor.getDouble(5);
-                ei.note = cursor.getString(6);
-                if (ei.note == null)
-                    ei.note = "";
-                rslt.updateInfo(ei);
+                do {
+                    RfIdentification ident = wanted.get(ByteBuffer.wrap(cursor.getBlob(0)));
+                    if (ident != null)
+                        rslt.put(ident, newEmitter(ident, cursor, 1));
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
             }
+        }
+    }
+
+    /**
+     * Create an emitter populated from the current row of a query result.
+     *
+     * @param ident The identification of the emitter
+     * @param cursor A cursor positioned on the emitter's row
+     * @param col The column holding the trust, followed by the latitude, longitude,
+     *            north-south radius, east-west radius and note columns
+     * @return The emitter
+     */
+    private RfEmitter newEmitter(RfIdentification ident, Cursor cursor, int col) {
+        RfEmitter rslt = new RfEmitter(ident);
+        EmitterInfo ei = new EmitterInfo();
+        ei.trust = (int) cursor.getLong(col);
+        ei.latitude = cursor.getDouble(col + 1);
+        ei.longitude = cursor.getDouble(col + 2);
+        ei.radius_ns = (float) cursor.getDouble(col + 3);
+        ei.radius_ew = (float) cursor.getDouble(col + 4);
+        ei.note = cursor.getString(col + 5);
+        if (ei.note == null)
+            ei.note = "";
+        rslt.updateInfo(ei);
+        return rslt;
+    }
+
+    /**
+     * Run a query with typed arguments. The rawQuery() method only allows
+     * string arguments which can't be used to match our binary keys and
+     * which need to be converted before being compared with numeric columns.
+     *
+     * @param sql The SQL query, with ? or ?N parameters
+     * @param args The query arguments. Must be byte[], Double, Long, Integer or String
+     * @return A cursor over the query result
+     */
+    private Cursor query(String sql, Object... args) {
+        return getReadableDatabase().rawQueryWithFactory(new TypedArgsCursorFactory(args), sql, null, null);
+    }
+
+    /**
+     * Binds typed query arguments when the cursor for a query is created.
+     */
+    private static class TypedArgsCursorFactory implements SQLiteDatabase.CursorFactory {
+        private final Object[] args;
+
+        TypedArgsCursorFactory(Object[] args) {
+            this.args = args;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                String editTable, SQLiteQuery query) {
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                if (arg == null)
+                    query.bindNull(i + 1);
+                else if (arg instanceof byte[])
+                    query.bindBlob(i + 1, (byte[]) arg);
+                else if ((arg instanceof Double) || (arg instanceof Float))
+                    query.bindDouble(i + 1, ((Number) arg).doubleValue());
+                else if (arg instanceof Number)
+                    query.bindLong(i + 1, ((Number) arg).longValue());
+                else
+                    query.bindString(i + 1, arg.toString());
+            }
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+    }
+
+    /**
+     * Write our settings and the settings actually in effect to a diagnostics dump.
+     * Some builds of SQLite ignore settings (e.g. mmap_size) they do not support.
+     *
+     * The values in effect are read in a transaction so that they come from the
+     * primary connection, the one our settings are applied to (see onConfigure()).
+     * So this waits for any batch being written to be committed.
+     *
+     * @param writer Where to write the information
+     */
+    public void dump(PrintWriter writer) {
+        SQLiteDatabase db = getReadableDatabase();
+        writer.println("Database: " + db.getPath() + " version " + db.getVersion());
+        String actualSynchronous = null;
+        String actualCacheSize = null;
+        String actualMmapSize = null;
+        String journalMode = null;
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                journalMode = pragma(db, "journal_mode");
+                actualSynchronous = pragma(db, "synchronous");
+                actualCacheSize = pragma(db, "cache_size");
+                actualMmapSize = pragma(db, "mmap_size");
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "dump() - Can't read primary connection settings: " + e.getMessage());
+        }
+        writer.println("  write ahead log: " + db.isWriteAheadLoggingEnabled() +
+                ", journal_mode=" + journalMode);
+        writer.println("  primary connection:");
+        writer.println("    synchronous: requested " + synchronous + ", actual " + actualSynchronous);
+        writer.println("    cache_size: requested -" + cacheSizeKb + ", actual " + actualCacheSize);
+        writer.println("    mmap_size: requested " + mmapSize + ", actual " + actualMmapSize);
+        writer.println("  reader connections: SQLite default cache_size and mmap_size");
+        writer.println("  page_size: " + pragma(db, "page_size") + ", page_count: " + pragma(db, "page_count"));
+        writer.println("  spatial index: " + hasSpatialIndex);
+    }
+
+    /**
+     * Run a PRAGMA statement. Some PRAGMAs return a value, which execSQL() does not
+     * allow, so use a query for all of them.
+     *
+     * @param db The database
+     * @param pragma The pragma, e.g. "synchronous=NORMAL"
+     * @return The first value returned or null if none.
+     */
+    private static String pragma(SQLiteDatabase db, String pragma) {
+        String rslt = null;
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + pragma + ";", null);
+            if (cursor.moveToFirst())
+                rslt = cursor.getString(0);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "pragma('" + pragma + "') failed: " + e.getMessage());
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -0,0 +1,467 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind queue in front of the flash based database.
+ *
+ * When the cache is sync'd, the emitters with changes hand snapshots of themselves to
+ * this queue rather than writing to the database. A single writer thread periodically
+ * takes everything queued and writes it in one transaction. So the thread doing the
+ * position computation never waits on flash writes.
+ *
+ * Multiple changes to the same emitter made before the writer gets to them are
+ * coalesced so that only the final state is written.
+ *
+ * If writing a batch fails the transaction is rolled back and each change in it is
+ * written on its own, so that one bad change does not hold back the rest. Changes that
+ * still fail go back on the queue, combined with any changes queued since, to be tried
+ * again after a delay that doubles with each failure. A change that has failed
+ * MAX_ATTEMPTS times is dropped.
+ *
+ * Until a change has been committed, the cache must ask us for the emitter rather than
+ * reading the (stale) database. See getPending().
+ */
+class DatabaseWriter implements EmitterSink, Runnable {
+    private static final String TAG = "DejaVu DB Writer";
+
+    /**
+     * How long to let changes accumulate before writing them. Changes are made
+     * at the end of each reporting period, so this groups a few periods worth
+     * of changes into each transaction.
+     */
+    private static final long WRITE_DELAY_MS = 10000;
+
+    /**
+     * Longest time to wait before trying a failed batch again.
+     */
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * Write immediately if this many emitters are waiting.
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Times a change is tried before it is dropped.
+     */
+    static final int MAX_ATTEMPTS = 5;
+
+    enum Op {INSERT, UPDATE, DROP}
+
+    /**
+     * A pending change to the database for a single emitter. Never modified
+     * once queued so that the writer thread can safely use it without holding
+     * our lock.
+     */
+    static class Pending {
+        final Op op;
+        final boolean dropFirst;
+        private final RfEmitter data;
+        /** Number of times writing this emitter has failed */
+        final int failures;
+
+        private Pending(Op op, boolean dropFirst, RfEmitter data, int failures) {
+            this.op = op;
+            this.dropFirst = dropFirst;
+            this.data = data;
+            this.failures = failures;
+        }
+
+        /**
+         * @return True if the emitter will not be in the database once this is written.
+         */
+        boolean isDropped() {
+            return op == Op.DROP;
+        }
+
+        /**
+         * Create a new emitter object holding the information that will be in the
+         * database once this change has been written. The same as we would get from
+         * Database.getEmitter() after the write.
+         *
+         * @return A new emitter, or null if the emitter is being dropped.
+         */
+        RfEmitter newEmitter() {
+            if (op == Op.DROP)
+                return null;
+            Database.EmitterInfo ei = new Database.EmitterInfo();
+            ei.trust = data.getTrust();
+            ei.latitude = data.getLat();
+            ei.longitude = data.getLon();
+            ei.radius_ns = (float) data.getRadiusNS();
+            ei.radius_ew = (float) data.getRadiusEW();
+            ei.note = data.getNote();
+            RfEmitter rslt = new RfEmitter(data.getRfIdent());
+            rslt.updateInfo(ei);
+            return rslt;
+        }
+    }
+
+    private final Database db;
+    private final long writeDelayMs;
+
+    /**
+     * Changes waiting to be written, and the batch being written. A change queued
+     * while its emitter is in the batch being written goes in pending, to be written
+     * after the batch.
+     */
+    private Map<RfIdentification, Pending> pending = new LinkedHashMap<>();
+    private Map<RfIdentification, Pending> writing = new LinkedHashMap<>();
+
+    private final Thread thread;
+    private long firstPendingTime;
+    private boolean closing;
+    private long commits;
+    private int failures;
+
+    private final Metrics.Histogram batches;
+    private final Metrics.Counter coalesced;
+    private final Metrics.Counter failedBatches;
+    private final Metrics.Counter dropped;
+
+    /**
+     * @param db The database to write to
+     * @param metrics Where to count our batches and queue length
+     */
+    DatabaseWriter(Database db, Metrics metrics) {
+        this(db, metrics, WRITE_DELAY_MS);
+    }
+
+    /**
+     * @param db The database to write to
+     * @param metrics Where to count our batches and queue length
+     * @param writeDelayMs How long to let changes accumulate before writing them
+     */
+    DatabaseWriter(Database db, Metrics metrics, long writeDelayMs) {
+        this.db = db;
+        this.writeDelayMs = writeDelayMs;
+        batches = metrics.histogram("writer.batch");
+        coalesced = metrics.counter("writer.coalesced");
+        failedBatches = metrics.counter("writer.failed");
+        dropped = metrics.counter("writer.dropped");
+        metrics.gauge("writer.queued", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return getQueued();
+            }
+        });
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    @Override
+    public void insert(RfEmitter emitter) {
+        queue(Op.INSERT, emitter);
+    }
+
+    @Override
+    public void update(RfEmitter emitter) {
+        queue(Op.UPDATE, emitter);
+    }
+
+    @Override
+    public void drop(RfEmitter emitter) {
+        queue(Op.DROP, emitter);
+    }
+
+    /**
+     * Get the change waiting to be written for an emitter.
+     *
+     * @param id The identification of the emitter
+     * @return The pending change or null if there is none.
+     */
+    synchronized Pending getPending(RfIdentification id) {
+        Pending p = pending.get(id);
+        return (p != null) ? p : writing.get(id);
+    }
+
+    /**
+     * @return The number of batches written so far. Changes each time the
+     * database is written.
+     */
+    synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return The number of emitters with changes waiting to be written.
+     */
+    synchronized int getQueued() {
+        return pending.size() + writing.size();
+    }
+
+    /**
+     * Write everything queued and stop the writer thread. Waits until all
+     * the changes are committed, or have failed to be.
+     */
+    void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "close() - Interrupted waiting for writer.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Combine a change with an earlier one for the same emitter that has not been
+     * written, giving the single change with the same result.
+     *
+     * @param old The earlier change, null if there is none
+     * @param op The database operation wanted
+     * @param dropFirst True if a row for the emitter may exist and must be dropped
+     *                  before inserting
+     * @param data The state of the emitter to be written
+     * @return The combined change, or null if there is nothing left to write. It
+     * keeps the failure count of the earlier change.
+     */
+    static Pending combine(Pending old, Op op, boolean dropFirst, RfEmitter data) {
+        int failures = 0;
+        if (old != null) {
+            failures = old.failures;
+            switch (op) {
+                case INSERT:
+                    // A row dropped earlier may still exist. Drop it before the insert.
+                    dropFirst |= (old.op == Op.DROP) || old.dropFirst;
+                    break;
+
+                case UPDATE:
+                    if (old.op == Op.INSERT) {
+                        // Row not written yet, insert the updated information.
+                        op = Op.INSERT;
+                        dropFirst = old.dropFirst;
+                    } else if (old.op == Op.DROP) {
+                        // Updating a dropped row has no effect.
+                        op = Op.DROP;
+                    }
+                    break;
+
+                case DROP:
+                    // Row never written and none there before it, nothing to drop.
+                    if ((old.op == Op.INSERT) && !old.dropFirst)
+                        return null;
+                    break;
+            }
+        }
+        return new Pending(op, dropFirst, data, failures);
+    }
+
+    /**
+     * Add a change to the queue, combining it with a queued change for the same emitter
+     * if there is one. Changes already being written are left alone as the new change
+     * will be applied after them.
+     *
+     * @param op The database operation wanted
+     * @param emitter The emitter
+     */
+    private synchronized void queue(Op op, RfEmitter emitter) {
+        if (closing && !thread.isAlive()) {
+            Log.d(TAG, "queue() - Writer closed, ignoring " + emitter.logString());
+            return;
+        }
+        RfIdentification id = emitter.getRfIdent();
+        Pending old = pending.get(id);
+        if (old != null)
+            coalesced.inc();
+
+        if (pending.isEmpty())
+            firstPendingTime = System.currentTimeMillis();
+        Pending p = combine(old, op, false, new RfEmitter(emitter));
+        if (p == null)
+            pending.remove(id);
+        else
+            pending.put(id, p);
+        if (pending.size() == 1 || pending.size() >= MAX_BATCH_SIZE)
+            notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Map<RfIdentification, Pending> batch;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !closing)
+                        wait();
+                    // After a failure wait out the retry delay even if the batch is full.
+                    long delay = firstPendingTime + writeDelay() - System.currentTimeMillis();
+                    while (!closing && (delay > 0) &&
+                            ((pending.size() < MAX_BATCH_SIZE) || (failures > 0))) {
+                        wait(delay);
+                        delay = firstPendingTime + writeDelay() - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "run() - Interrupted, writing queued changes.");
+                    closing = true;
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                writing = batch;
+                pending = new LinkedHashMap<>();
+            }
+
+            long start = System.nanoTime();
+            Map<RfIdentification, Pending> failed = new LinkedHashMap<>();
+            boolean written = write(batch);
+            if (!written) {
+                failedBatches.inc();
+                // Find the changes that fail by themselves and write the rest.
+                if (batch.size() > 1)
+                    written = writeEach(batch, failed);
+                else
+                    failed.putAll(batch);
+            }
+            batches.since(start);
+
+            synchronized (this) {
+                writing = new LinkedHashMap<>();
+                if (written)
+                    commits++;
+                if (failed.isEmpty()) {
+                    failures = 0;
+                } else {
+                    failures++;
+                    if (closing) {
+                        Log.e(TAG, "run() - Closing, giving up on " + failed.size() + " emitters.");
+                        dropped.add(failed.size());
+                        return;
+                    }
+                    requeue(failed);
+                }
+                if (!pending.isEmpty())
+                    firstPendingTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Write the changes in a batch one at a time.
+     *
+     * @param batch The changes to write
+     * @param failed Where to put the changes that failed
+     * @return True if any of the changes were committed
+     */
+    private boolean writeEach(Map<RfIdentification, Pending> batch,
+                              Map<RfIdentification, Pending> failed) {
+        boolean rslt = false;
+        for (Map.Entry<RfIdentification, Pending> entry : batch.entrySet()) {
+            if (write(Collections.singletonMap(entry.getKey(), entry.getValue())))
+                rslt = true;
+            else
+                failed.put(entry.getKey(), entry.getValue());
+        }
+        return rslt;
+    }
+
+    /**
+     * @return How long to let changes accumulate before the next write.
+     */
+    private long writeDelay() {
+        return Math.min(writeDelayMs << Math.min(failures, 10), MAX_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Put the changes that failed back on the queue, dropping those that have failed
+     * too often. Changes queued while they were being written were made after them,
+     * so are combined with them.
+     *
+     * @param failed The changes that failed to be written
+     */
+    private void requeue(Map<RfIdentification, Pending> failed) {
+        Map<RfIdentification, Pending> newer = pending;
+        pending = new LinkedHashMap<>();
+        for (Map.Entry<RfIdentification, Pending> entry : failed.entrySet()) {
+            Pending p = entry.getValue();
+            if (p.failures + 1 >= MAX_ATTEMPTS) {
+                Log.e(TAG, "requeue() - Dropping change to " + entry.getKey() +
+                        " after " + MAX_ATTEMPTS + " failures.");
+                dropped.inc();
+            } else {
+                pending.put(entry.getKey(), new Pending(p.op, p.dropFirst, p.data, p.failures + 1));
+            }
+        }
+        for (Map.Entry<RfIdentification, Pending> entry : newer.entrySet()) {
+            RfIdentification id = entry.getKey();
+            Pending p = entry.getValue();
+            Pending combined = combine(pending.get(id), p.op, p.dropFirst, p.data);
+            if (combined == null)
+                pending.remove(id);
+            else
+                pending.put(id, combined);
+        }
+    }
+
+    /**
+     * Write a batch of changes to the database in one transaction. If any of them
+     * fails, none are written.
+     *
+     * @param batch The changes to write
+     * @return True if the changes were committed
+     */
+    private boolean write(Map<RfIdentification, Pending> batch) {
+        //Log.d(TAG, "write() - Writing " + batch.size() + " emitters.");
+        try {
+            db.beginTransaction();
+            boolean done = false;
+            try {
+                for (Pending p : batch.values()) {
+                    switch (p.op) {
+                        case INSERT:
+                            if (p.dropFirst)
+                                db.drop(p.data);
+                            db.insert(p.data);
+                            break;
+
+                        case UPDATE:
+                            db.update(p.data);
+                            break;
+
+                        case DROP:
+                            db.drop(p.data);
+                            break;
+                    }
+                }
+                done = true;
+            } finally {
+                if (done)
+                    db.endTransaction();
+                else
+                    db.abortTransaction();
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "write() - Failed to write " + batch.size() + " emitters.", e);
+            return false;
+        }
+    }
+}
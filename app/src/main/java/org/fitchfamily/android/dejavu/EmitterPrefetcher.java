@@ -0,0 +1,207 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the emitters around our position into the cache before we see them, so the
+ * processing thread finds them in memory rather than reading them one scan at a time.
+ *
+ * The world is divided into the usual web map tiles. When our position moves into a
+ * new tile we load, in a single query on our own thread, the tiles in a ring around
+ * it that have not been loaded recently. Tiles are remembered as loaded for a while
+ * so moving back and forth does not reload them. In a dense area the cache only
+ * takes the emitters nearest the center tile, then the tiles are not remembered
+ * and are loaded again when we move.
+ */
+class EmitterPrefetcher {
+    private static final String TAG = "DejaVu Prefetch";
+
+    /**
+     * Tile zoom level. At level 16 a tile is about 600 meters across at the
+     * equator, several times the typical range of a WLAN.
+     */
+    private static final int ZOOM = 16;
+    private static final int TILES = 1 << ZOOM;
+
+    /**
+     * Number of tiles on each side of the current tile to keep loaded.
+     */
+    private static final int RING = 1;
+
+    /**
+     * How long a tile is considered loaded. After this its emitters may have
+     * been evicted from the cache.
+     */
+    private static final long WARM_MS = 10 * 60 * 1000;
+    private static final int MAX_WARM_TILES = 4 * (2 * RING + 1) * (2 * RING + 1);
+
+    private static final double MAX_LATITUDE = 85.0511;
+
+    private final Cache cache;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Tiles loaded and when they were loaded, oldest first.
+     */
+    private final LinkedHashMap<Long, Long> warmTiles = new LinkedHashMap<>();
+
+    private long lastTile = -1;
+
+    EmitterPrefetcher(Cache cache) {
+        this.cache = cache;
+
+        // Only the most recent request matters, so keep at most one waiting.
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(1),
+                new BackendService.WorkerThreadFactory("DejaVu prefetch"),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Note our current position. If it is in a different tile than last time,
+     * load the surrounding tiles in the background.
+     *
+     * @param lat Latitude of our position
+     * @param lon Longitude of our position
+     */
+    void update(double lat, double lon) {
+        final int x = tileX(lon);
+        final int y = tileY(lat);
+        long tile = tileKey(x, y);
+        if (tile == lastTile)
+            return;
+        lastTile = tile;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(x, y);
+            }
+        });
+    }
+
+    /**
+     * Stop loading. A load in progress is allowed to finish.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Load all the tiles in the ring around a tile that aren't already loaded.
+     * The missing tiles are loaded with a single query on the box around them.
+     *
+     * @param centerX X of the center tile
+     * @param centerY Y of the center tile
+     */
+    private void load(int centerX, int centerY) {
+        long now = System.currentTimeMillis();
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        synchronized (warmTiles) {
+            Iterator<Long> it = warmTiles.values().iterator();
+            while (it.hasNext() && (now - it.next() > WARM_MS))
+                it.remove();
+
+            for (int x = centerX - RING; x <= centerX + RING; x++) {
+                for (int y = centerY - RING; y <= centerY + RING; y++) {
+                    // Don't bother wrapping around the date line or over the poles
+                    if ((x < 0) || (x >= TILES) || (y < 0) || (y >= TILES))
+                        continue;
+                    if (warmTiles.containsKey(tileKey(x, y)))
+                        continue;
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        if (minX > maxX)
+            return;
+
+        // Tile y increases to the south.
+        BoundingBox bb = new BoundingBox();
+        bb.update(tileLat(maxY + 1), tileLon(minX));
+        bb.update(tileLat(minY), tileLon(maxX + 1));
+        double centerLat = (tileLat(centerY) + tileLat(centerY + 1)) / 2.0;
+        double centerLon = (tileLon(centerX) + tileLon(centerX + 1)) / 2.0;
+        if (!cache.prefetch(bb, centerLat, centerLon)) {
+            Log.d(TAG, "load() - Area not loaded in full, tiles not marked as loaded.");
+            return;
+        }
+
+        synchronized (warmTiles) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    Long key = tileKey(x, y);
+                    warmTiles.remove(key);
+                    warmTiles.put(key, now);
+                }
+            }
+            Iterator<Long> it = warmTiles.keySet().iterator();
+            while (warmTiles.size() > MAX_WARM_TILES) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static long tileKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int tileX(double lon) {
+        int x = (int) Math.floor((lon + 180.0) / 360.0 * TILES);
+        return Math.min(Math.max(x, 0), TILES - 1);
+    }
+
+    private static int tileY(double lat) {
+        double latRad = Math.toRadians(Math.min(Math.max(lat, -MAX_LATITUDE), MAX_LATITUDE));
+        double merc = Math.log(Math.tan(latRad) + 1.0 / Math.cos(latRad));
+        int y = (int) Math.floor((1.0 - merc / Math.PI) / 2.0 * TILES);
+        return Math.min(Math.max(y, 0), TILES - 1);
+    }
+
+    /**
+     * @return The longitude of the west edge of tiles with this x
+     */
+    private static double tileLon(int x) {
+        return (double) x / TILES * 360.0 - 180.0;
+    }
+
+    /**
+     * @return The latitude of the north edge of tiles with this y
+     */
+    private static double tileLat(int y) {
+        double n = Math.PI * (1.0 - 2.0 * y / TILES);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+}
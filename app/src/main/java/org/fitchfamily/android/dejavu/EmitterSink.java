@@ -0,0 +1,46 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Where RfEmitter.sync() sends the changes that need to be saved to flash. Either
+ * the database itself or the write-behind queue in front of it.
+ */
+interface EmitterSink {
+    /**
+     * Add a new RF emitter.
+     *
+     * @param emitter The emitter to be added.
+     */
+    void insert(RfEmitter emitter);
+
+    /**
+     * Update information about an existing RF emitter.
+     *
+     * @param emitter The emitter to be updated.
+     */
+    void update(RfEmitter emitter);
+
+    /**
+     * Drop an RF emitter.
+     *
+     * @param emitter The emitter to be dropped.
+     */
+    void drop(RfEmitter emitter);
+}
@@ -0,0 +1,141 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the emitters we expect to see around a position that moves from one
+ * reporting period to the next.
+ *
+ * Finding the expected emitters takes a database query. Most of the time the position
+ * has barely moved since the last period, so we remember the result for each type of
+ * emitter along with the position it was found for, and reuse it until the position
+ * moves more than a fraction of the typical range of that type. The types that do
+ * need looking up are all looked up in a single query. Results are also refreshed
+ * after a while so that emitters added to the database in the area become expected.
+ */
+class ExpectedEmitters {
+    private static final String TAG = "DejaVu Expected";
+
+    /**
+     * How far, as a fraction of the typical range of an emitter type, the position
+     * may move before we look up the expected emitters of that type again.
+     */
+    private static final double MOVE_TOLERANCE = 0.1;
+
+    /**
+     * How long a result may be reused, even if we haven't moved.
+     */
+    private static final long MAX_AGE_MS = 60 * 1000;
+
+    private static class Area {
+        final double lat;
+        final double lon;
+        final double cosLat;
+        final long timeMs;
+        final Set<RfIdentification> ids;
+
+        Area(double lat, double lon, long timeMs, Set<RfIdentification> ids) {
+            this.lat = lat;
+            this.lon = lon;
+            this.cosLat = Geometry.cosLat(lat);
+            this.timeMs = timeMs;
+            this.ids = ids;
+        }
+    }
+
+    private final Map<EmitterType, Area> areas = new EnumMap<>(EmitterType.class);
+    private long queries;
+    private long reuses;
+
+    /**
+     * Get the emitters we should expect to see at a location.
+     *
+     * @param cache The emitter cache to look up emitters with
+     * @param lat Latitude of the location we think we are at
+     * @param lon Longitude of the location we think we are at
+     * @param accuracy Accuracy of the location in meters
+     * @param timeMs The current time
+     * @return The IDs of the RF emitters we should expect at this location.
+     */
+    Set<RfIdentification> get(Cache cache, double lat, double lon, float accuracy, long timeMs) {
+        Set<RfIdentification> rslt = new HashSet<>();
+        double cosLat = Geometry.cosLat(lat);
+
+        // Reuse what we can and collect the area for each type that needs a new lookup.
+        Map<EmitterType, BoundingBox> stale = new EnumMap<>(EmitterType.class);
+        for (EmitterType rfType : EmitterType.values()) {
+            RfCharacteristics rfChar = RfCharacteristics.forType(rfType);
+            if (accuracy > rfChar.typicalRange)
+                continue;
+
+            Area area = areas.get(rfType);
+            if ((area == null) ||
+                    (timeMs - area.timeMs > MAX_AGE_MS) ||
+                    (Geometry.distance(lat, lon, cosLat, area.lat, area.lon, area.cosLat) >
+                            rfChar.typicalRange * MOVE_TOLERANCE)) {
+                stale.put(rfType, new BoundingBox(lat, lon, rfChar.typicalRange));
+            } else {
+                reuses++;
+                rslt.addAll(area.ids);
+            }
+        }
+        if (stale.isEmpty())
+            return rslt;
+
+        // Look up all the stale types in one query. The lookup bypasses the
+        // cache, so sync first.
+        cache.sync();
+        Set<RfIdentification> found = cache.getEmitters(stale);
+        if (found == null)
+            return rslt;
+        queries++;
+
+        Map<EmitterType, Set<RfIdentification>> byType = new EnumMap<>(EmitterType.class);
+        for (EmitterType rfType : stale.keySet())
+            byType.put(rfType, new HashSet<RfIdentification>());
+        for (RfIdentification id : found) {
+            Set<RfIdentification> ids = byType.get(id.getRfType());
+            if (ids != null)
+                ids.add(id);
+        }
+        for (Map.Entry<EmitterType, Set<RfIdentification>> entry : byType.entrySet())
+            areas.put(entry.getKey(), new Area(lat, lon, timeMs, entry.getValue()));
+        rslt.addAll(found);
+        return rslt;
+    }
+
+    /**
+     * Forget all remembered results. Used when the database may have been
+     * changed behind our back.
+     */
+    void reset() {
+        if (queries + reuses > 0)
+            Log.d(TAG, "reset() - " + queries + " queries, " + reuses + " reused.");
+        areas.clear();
+        queries = 0;
+        reuses = 0;
+    }
+}
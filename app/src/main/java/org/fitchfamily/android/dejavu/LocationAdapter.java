@@ -0,0 +1,69 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.location.Location;
+import android.os.Bundle;
+
+/**
+ * Converts between Android's Location and the Position used by the positioning code,
+ * which does not depend on Android.
+ */
+final class LocationAdapter {
+
+    private LocationAdapter() {
+    }
+
+    /**
+     * @param location A location from Android, typically a GPS report
+     * @return The location as a Position
+     */
+    static Position toPosition(Location location) {
+        return new Position(location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), location.getTime(), location.getElapsedRealtimeNanos(), 1,
+                location.hasAltitude(), location.getAltitude(),
+                location.hasSpeed(), location.getSpeed(), location.getBearing());
+    }
+
+    /**
+     * @param position A position estimate
+     * @return A new Location for reporting the position
+     */
+    static Location toLocation(Position position) {
+        final Location location = new Location(BackendService.LOCATION_PROVIDER);
+
+        location.setTime(position.timeMs);
+        location.setElapsedRealtimeNanos(position.elapsedRealtimeNanos);
+        location.setLatitude(position.lat);
+        location.setLongitude(position.lon);
+        if (position.hasAltitude)
+            location.setAltitude(position.altitude);
+        location.setAccuracy(position.accuracy);
+        if (position.hasSpeed) {
+            location.setSpeed(position.speed);
+            location.setBearing(position.bearing);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putLong("AVERAGED_OF", position.averagedOf);
+        location.setExtras(extras);
+
+        return location;
+    }
+}
@@ -0,0 +1,244 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of named performance metrics, written to the service dump so that
+ * "dumpsys" shows where the time goes on a real device.
+ *
+ * There are three kinds of metric:
+ *   Counters count events.
+ *   Gauges are read when the dump is written.
+ *   Histograms count durations in fixed buckets, from which the percentiles
+ *   are estimated. Recording a duration is a few additions, so they can be
+ *   left in place in production.
+ *
+ * Asking for a metric by a name already registered returns the existing one, so
+ * a class that is created again (e.g. the database when the service reopens)
+ * keeps adding to the same metrics. A name can only be used for one kind of metric.
+ * Metrics are dumped in the order registered.
+ */
+class Metrics {
+    /**
+     * Upper bounds of the histogram buckets, in microseconds. Durations over the
+     * last bound go in an overflow bucket.
+     */
+    private static final long[] BUCKET_MICROS = {
+            50, 100, 250, 500,
+            1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000, 2500000};
+
+    /**
+     * Value read when the dump is written.
+     */
+    interface Gauge {
+        long get();
+    }
+
+    static class Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        void inc() {
+            count.incrementAndGet();
+        }
+
+        void add(long n) {
+            count.addAndGet(n);
+        }
+
+        long get() {
+            return count.get();
+        }
+
+        private void reset() {
+            count.set(0);
+        }
+    }
+
+    static class Histogram {
+        private final long[] buckets = new long[BUCKET_MICROS.length + 1];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        /**
+         * @param nanos A duration, e.g. the difference between two System.nanoTime() values
+         */
+        synchronized void record(long nanos) {
+            long micros = nanos / 1000;
+            int i = 0;
+            while ((i < BUCKET_MICROS.length) && (micros > BUCKET_MICROS[i]))
+                i++;
+            buckets[i]++;
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos)
+                maxNanos = nanos;
+        }
+
+        /**
+         * Record the time since a start time.
+         *
+         * @param startNanos The System.nanoTime() at the start
+         */
+        void since(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Estimate a percentile as the upper bound of the bucket it falls in, or
+         * the maximum if that is lower or it is in the overflow bucket.
+         *
+         * @param fraction The fraction of durations at or below the result
+         * @return The estimate in nanoseconds
+         */
+        private long percentile(double fraction) {
+            long wanted = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_MICROS.length; i++) {
+                seen += buckets[i];
+                if (seen >= wanted)
+                    return Math.min(BUCKET_MICROS[i] * 1000, maxNanos);
+            }
+            return maxNanos;
+        }
+
+        private synchronized String summary() {
+            if (count == 0)
+                return "count 0";
+            return String.format(Locale.US,
+                    "count %d, mean %.3f ms, 50%% %.3f, 90%% %.3f, 99%% %.3f, max %.3f",
+                    count, totalNanos / 1.0e6 / count,
+                    percentile(0.5) / 1.0e6, percentile(0.9) / 1.0e6,
+                    percentile(0.99) / 1.0e6, maxNanos / 1.0e6);
+        }
+
+        private synchronized void reset() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = 0;
+            count = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+    }
+
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+    private long startMs = System.currentTimeMillis();
+
+    /**
+     * @param name The name of the counter
+     * @return The counter registered with the name, a new one if there is none
+     * @throws IllegalArgumentException If the name is registered to another kind of metric
+     */
+    synchronized Counter counter(String name) {
+        Counter c = existing(name, Counter.class);
+        if (c == null) {
+            c = new Counter();
+            metrics.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * @param name The name of the histogram
+     * @return The histogram registered with the name, a new one if there is none
+     * @throws IllegalArgumentException If the name is registered to another kind of metric
+     */
+    synchronized Histogram histogram(String name) {
+        Histogram h = existing(name, Histogram.class);
+        if (h == null) {
+            h = new Histogram();
+            metrics.put(name, h);
+        }
+        return h;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     *
+     * @param name The name of the gauge
+     * @param gauge Reads the value
+     * @throws IllegalArgumentException If the name is registered to another kind of metric
+     */
+    synchronized void gauge(String name, Gauge gauge) {
+        existing(name, Gauge.class);
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * @param name The name of a metric
+     * @param kind The kind of metric wanted
+     * @return The metric registered with the name, null if there is none
+     * @throws IllegalArgumentException If the name is registered to another kind of metric
+     */
+    private <T> T existing(String name, Class<T> kind) {
+        Object m = metrics.get(name);
+        if ((m != null) && !kind.isInstance(m))
+            throw new IllegalArgumentException("Metric " + name + " is not a " +
+                    kind.getSimpleName().toLowerCase(Locale.US));
+        return kind.cast(m);
+    }
+
+    /**
+     * Set the counters and histograms back to zero. Gauges are left alone.
+     */
+    synchronized void reset() {
+        for (Object m : metrics.values()) {
+            if (m instanceof Counter)
+                ((Counter) m).reset();
+            else if (m instanceof Histogram)
+                ((Histogram) m).reset();
+        }
+        startMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the current value of every metric to a diagnostics dump.
+     * Histogram durations are in milliseconds.
+     *
+     * @param writer Where to write the information
+     */
+    void dump(PrintWriter writer) {
+        Map<String, Object> copy;
+        long since;
+        synchronized (this) {
+            copy = new LinkedHashMap<>(metrics);
+            since = startMs;
+        }
+        writer.println(String.format(Locale.US, "Metrics: over the last %.1f s",
+                (System.currentTimeMillis() - since) / 1000.0));
+        for (Map.Entry<String, Object> entry : copy.entrySet()) {
+            Object m = entry.getValue();
+            String value;
+            if (m instanceof Counter)
+                value = Long.toString(((Counter) m).get());
+            else if (m instanceof Gauge)
+                value = Long.toString(((Gauge) m).get());
+            else
+                value = ((Histogram) m).summary();
+            writer.println("  " + entry.getKey() + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The processing pipeline: takes the GPS positions and the observations from the
+ * scans, keeps the emitter coverage and trust up to date and computes our position
+ * once per reporting period.
+ *
+ * All the time it uses comes from its clock and the inputs, so with a virtual clock
+ * a recorded trace can be fed through it as fast as it will go. The inputs can also
+ * be recorded as they come in, see setRecorder().
+ */
+class Pipeline {
+    private static final String TAG = "DejaVu Pipeline";
+
+    /**
+     * Process noise for lat and lon.
+     *
+     * We do not have an accelerometer, so process noise ought to be large enough
+     * to account for reasonable changes in vehicle speed. Assume 0 to 100 kph in
+     * 5 seconds (20kph/sec ~= 5.6 m/s**2 acceleration). Or the reverse, 6 m/s**2
+     * is about 0-130 kph in 6 seconds
+     */
+    private final static double GPS_COORDINATE_NOISE = 3.0;
+    private final static double POSITION_COORDINATE_NOISE = 6.0;
+
+    /**
+     * Minimum time between position reports, in milliseconds.
+     */
+    final static long REPORTING_INTERVAL = 2700;
+
+    /**
+     * Called at the end of each reporting period.
+     */
+    interface Listener {
+        /**
+         * @param estimate The position computed for the period, null if none
+         * @param gps The filtered GPS position at the end of the period, null if none
+         */
+        void onPeriodEnd(Position estimate, Position gps);
+    }
+
+    private final Cache emitterCache;
+    private final Clock clock;
+    private final Listener listener;
+
+    private Kalman gpsLocation;             // Filtered GPS (because GPS is so bad on Moto G4 Play)
+
+    //
+    // Periodic process information.
+    //
+    // We keep a set of the WiFi APs we expected to see and ones we've seen and then
+    // periodically adjust the trust. Ones we've seen we increment, ones we expected
+    // to see but didn't we decrement.
+    //
+    private Set<RfIdentification> seenSet = new HashSet<>();
+    private long nextReportTime;
+
+    // The emitters expected around our computed position and around the GPS position.
+    private final ExpectedEmitters expectedNearEstimate = new ExpectedEmitters();
+    private final ExpectedEmitters expectedNearGps = new ExpectedEmitters();
+
+    private Trace.Writer recorder;
+
+    // Processing times are real times, whatever the clock says.
+    private final Metrics.Histogram processTimes;
+    private final Metrics.Histogram periodTimes;
+    private final Metrics.Counter observationCount;
+    private final Metrics.Counter positionCount;
+
+    /**
+     * @param cache The emitters
+     * @param clock Where to get the current time
+     * @param listener Called at the end of each reporting period
+     * @param metrics Where to count our work
+     */
+    Pipeline(Cache cache, Clock clock, Listener listener, Metrics metrics) {
+        this.emitterCache = cache;
+        this.clock = clock;
+        this.listener = listener;
+        processTimes = metrics.histogram("pipeline.process");
+        periodTimes = metrics.histogram("pipeline.period");
+        observationCount = metrics.counter("pipeline.observations");
+        positionCount = metrics.counter("pipeline.positions");
+    }
+
+    /**
+     * Start or stop recording the inputs.
+     *
+     * @param writer The trace to record to, null to stop recording
+     * @return The trace previously recorded to, if any
+     */
+    synchronized Trace.Writer setRecorder(Trace.Writer writer) {
+        Trace.Writer old = recorder;
+        recorder = writer;
+        return old;
+    }
+
+    /**
+     * Update our local Kalman filter (our best guess on GPS reported position) with a
+     * new GPS position report.
+     *
+     * @param gps The GPS reported position
+     */
+    synchronized void onGps(Position gps) {
+        if (recorder != null) {
+            try {
+                recorder.gps(clock.currentTimeMillis(), clock.elapsedRealtimeNanos(), gps);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+        if (gpsLocation == null)
+            gpsLocation = new Kalman(gps, GPS_COORDINATE_NOISE);
+        else
+            gpsLocation.update(gps);
+    }
+
+    /**
+     * Process a group of observations. Process in this context means
+     * 1. Add the emitters to the set of emitters we have seen in this processing period.
+     * 2. If the GPS is accurate enough, update our coverage estimates for the emitters.
+     * 3. If the GPS is accurate enough, update a list of emitters we think we should have seen.
+     * 3. Compute a position based on the current observations.
+     * 4. If our collection period is over, report our position to microG/UnifiedNlp and
+     *    synchonize our information with the flash based database.
+     *
+     * The GPS position used is the one current when the observations are processed.
+     * The clock is read once, on entry, and that time used throughout.
+     *
+     * @param observations A set of RF emitter observations (all must be of the same type)
+     * @param timeMs The time the observations were made.
+     */
+    synchronized void process(Collection<Observation> observations, long timeMs) {
+        long start = System.nanoTime();
+        long currentProcessTime = clock.currentTimeMillis();
+        long currentProcessNanos = clock.elapsedRealtimeNanos();
+        if (recorder != null) {
+            try {
+                recorder.observations(currentProcessTime, currentProcessNanos, observations, timeMs);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+
+        Position gps = gpsSnapshot(currentProcessTime, currentProcessNanos);
+
+        Collection<RfEmitter> emitters = new HashSet<>();
+
+        // Remember all the emitters we've seen during this processing period
+        // and build a set of emitter objects for each RF emitter in the
+        // observation set.
+
+        List<RfIdentification> ids = new ArrayList<>(observations.size());
+        for (Observation o : observations) {
+            seenSet.add(o.getIdent());
+            ids.add(o.getIdent());
+        }
+        Map<RfIdentification, RfEmitter> cached = emitterCache.getAll(ids);
+
+        for (Observation o : observations) {
+            RfEmitter e = cached.get(o.getIdent());
+            if (e != null) {
+                e.setLastObservation(o);
+                emitters.add(e);
+            }
+        }
+
+        // Update emitter coverage based on GPS as needed and get the set of locations
+        // the emitters are known to be seen at.
+
+        updateEmitters(emitters, gps);
+
+        // Check for the end of our collection period. If we are in a new period
+        // then finish off the processing for the previous period.
+        if (currentProcessTime >= nextReportTime) {
+            nextReportTime = currentProcessTime + REPORTING_INTERVAL;
+            long periodStart = System.nanoTime();
+            endOfPeriodProcessing(gps, currentProcessTime);
+            periodTimes.since(periodStart);
+        }
+        observationCount.add(observations.size());
+        processTimes.since(start);
+    }
+
+    /**
+     * Forget the expected emitters found. Used when the database may have been
+     * changed behind our back.
+     */
+    synchronized void reset() {
+        expectedNearEstimate.reset();
+        expectedNearGps.reset();
+    }
+
+    private void recordFailed(IOException e) {
+        Log.w(TAG, "Recording trace failed, stopped.", e);
+        try {
+            recorder.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+        recorder = null;
+    }
+
+    /**
+     * Take the current state of the GPS filter, once per use, so the prediction
+     * it involves is not repeated.
+     *
+     * @param timeMs The current time
+     * @param elapsedRealtimeNanos The current elapsed realtime
+     * @return The filtered GPS position or null if we don't have a believable one
+     */
+    private Position gpsSnapshot(long timeMs, long elapsedRealtimeNanos) {
+        if (gpsLocation == null)
+            return null;
+        Position gps = gpsLocation.getPosition(timeMs, elapsedRealtimeNanos);
+        if (!BackendService.notNullIsland(gps.lat, gps.lon))
+            return null;
+        return gps;
+    }
+
+    /**
+     * Update the coverage estimates for the emitters we have just gotten observations for.
+     *
+     * @param emitters The emitters we have just observed
+     * @param gps The GPS position at the time the observations were collected.
+     */
+    private void updateEmitters(Collection<RfEmitter> emitters, Position gps) {
+        for (RfEmitter emitter : emitters) {
+            emitter.updateLocation(gps);
+        }
+    }
+
+    /**
+     * Get coverage estimates for a list of emitters. Fixes are marked with the
+     * time of last update, etc.
+     *
+     * @param emitters The emitters desired
+     * @return A list of the coverage areas for the emitters
+     */
+    private List<EmitterFix> getRfLocations(Collection<RfEmitter> emitters) {
+        List<EmitterFix> fixes = new ArrayList<>(emitters.size());
+        for (RfEmitter e : emitters) {
+            EmitterFix fix = e.getFix();
+            if (fix != null) {
+                fixes.add(fix);
+            }
+        }
+        return fixes;
+    }
+
+    /**
+     * Compute our current location using a weighted average algorithm. We also keep
+     * track of the types of emitters we have seen for the end of period processing.
+     *
+     * For any given reporting interval, we will only use an emitter once, so we keep
+     * a set of used emitters.
+     *
+     * @param fixes The set of coverage information for the current observations
+     */
+    private Position computePostion(Collection<EmitterFix> fixes) {
+        if (fixes == null)
+            return null;
+
+        WeightedAverage weightedAverage = new WeightedAverage();
+        for (EmitterFix fix : fixes) {
+            weightedAverage.add(fix);
+        }
+        return weightedAverage.result();
+    }
+
+    /**
+     *
+     * The collector service attempts to detect and not report moved/moving emitters.
+     * But it (and thus our database) can't be perfect. This routine looks at all the
+     * emitters and returns the largest subset (group) that are within a reasonable
+     * distance of one another.
+     *
+     * The hope is that a single moved/moving emitters that is seen now but whose
+     * location was detected miles away can be excluded from the set of APs
+     * we use to determine where the phone is at this moment.
+     *
+     * We do this by creating collections of emitters where all the emitters in a group
+     * are within a plausible distance of one another. A single emitters may end up
+     * in multiple groups. When done, we return the largest group.
+     *
+     * If we are at the extreme limit of possible coverage (movedThreshold)
+     * from two emitters then those emitters could be a distance of 2*movedThreshold apart.
+     * So we will group the emitters based on that large distance.
+     *
+     * @param fixes A collection of the coverages for the current observation set
+     * @return The largest set of coverages found within the raw observations. That is
+     * the most believable set of coverage areas.
+     */
+    private Collection<EmitterFix> culledEmitters(Collection<EmitterFix> fixes) {
+        List<EmitterFix> rslt = new EmitterClusters(fixes).largestGroup();
+
+        if (!rslt.isEmpty()) {
+            // Determine minimum count for a valid group of emitters.
+            // The RfEmitter class will have put the min count into the fix
+            // it provided.
+            long reqdCount = 99999L;            // Some impossibly big number
+            for (EmitterFix fix : rslt) {
+                reqdCount = Math.min(fix.minCount,reqdCount);
+            }
+            //Log.d(TAG,"culledEmitters() reqdCount="+reqdCount+", size="+rslt.size());
+            if (rslt.size() >= reqdCount)
+                return rslt;
+        }
+        return null;
+    }
+
+    /**
+     * We bulk up operations to reduce writing to flash memory. And there really isn't
+     * much need to report location to microG/UnifiedNlp more often than once every three
+     * or four seconds. Another reason is that we can average more samples into each
+     * report so there is a chance that our position computation is more accurate.
+     *
+     * @param gps The filtered GPS position taken for the current work item, may be null
+     * @param now The current time
+     */
+    private void endOfPeriodProcessing(Position gps, long now) {
+
+        //Log.d(TAG,"endOfPeriodProcessing() - Starting new process period.");
+
+        // Estimate location using weighted average of the most recent
+        // observations from the set of RF emitters we have seen. We cull
+        // the locations based on distance from each other to reduce the
+        // chance that a moved/moving emitter will be used in the computation.
+
+        Map<RfIdentification, RfEmitter> seen = emitterCache.getAll(seenSet);
+        Collection<EmitterFix> fixes = culledEmitters(getRfLocations(seen.values()));
+        Position estimate = computePostion(fixes);
+        if (estimate != null)
+            positionCount.inc();
+        listener.onPeriodEnd(estimate, gps);
+
+        // Increment the trust of the emitters we've seen and decrement the trust
+        // of the emitters we expected to see but didn't.
+
+        for (RfEmitter e : seen.values()) {
+            e.incrementTrust();
+        }
+
+        // If we are dealing with very movable emitters, then try to detect ones that
+        // have moved out of the area. We do that by collecting the set of emitters
+        // that we expected to see in this area based on the GPS and our own location
+        // computation. The expected emitters found for the previous period are reused
+        // while the position hasn't moved much.
+        //
+        // With the write-behind writer the most recent changes may not be in the
+        // database yet, which at worst delays the trust decrement of a new emitter
+        // by a period or two.
+
+        Set<RfIdentification> expectedSet = new HashSet<>();
+        if (estimate != null) {
+            expectedSet.addAll(expectedNearEstimate.get(emitterCache,
+                    estimate.lat, estimate.lon, estimate.accuracy, now));
+            if (gps != null)
+                expectedSet.addAll(expectedNearGps.get(emitterCache, gps.lat, gps.lon, gps.accuracy, now));
+        }
+
+        expectedSet.removeAll(seenSet);
+        for (RfEmitter e : emitterCache.getAll(expectedSet).values()) {
+            e.decrementTrust();
+        }
+
+        // Sync all of our changes to the on flash database and reset the RF emitters we've seen.
+
+        emitterCache.sync();
+        seenSet = new HashSet<>();
+    }
+}
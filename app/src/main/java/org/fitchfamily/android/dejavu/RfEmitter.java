@@ -23,8 +23,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 8/27/17.
  */
 
-import android.location.Location;
-import android.os.Bundle;
 import android.util.Log;
 
 import java.util.Locale;
@@ -55,21 +53,6 @@ public class RfEmitter {
     private static final long HOURS = 60 * MINUTES;
     private static final long DAYS = HOURS * 24;
 
-    private static final long METERS = 1;
-    private static final long KM = METERS * 1000;
-
-    private static final long MINIMUM_TRUST = 0;
-    private static final long REQUIRED_TRUST = 48;
-    private static final long MAXIMUM_TRUST = 100;
-
-    // Tag/names for additional information on location records
-    public static final String LOC_RF_ID = "rfid";
-    public static final String LOC_RF_TYPE = "rftype";
-    public static final String LOC_ASU = "asu";
-    public static final String LOC_MIN_COUNT = "minCount";
-
-    public enum EmitterType {WLAN_24GHZ, WLAN_5GHZ, MOBILE, INVALID}
-
     public enum EmitterStatus {
         STATUS_UNKNOWN,             // Newly discovered emitter, no data for it at all
         STATUS_NEW,                 // Not in database but we've got location data for it
@@ -78,37 +61,9 @@ public class RfEmitter {
         STATUS_BLACKLISTED          // Has been blacklisted
     }
 
-    public static class RfCharacteristics {
-        public final float reqdGpsAccuracy;       // GPS accuracy needed in meters
-        public final float minimumRange;          // Minimum believable coverage radius in meters
-        public final float typicalRange;          // Typical range expected
-        public final float moveDetectDistance;    // Maximum believable coverage radius in meters
-        public final long discoveryTrust;         // Assumed trustiness of a rust an emitter seen for the first time.
-        public final long incrTrust;              // Amount to increase trust
-        public final long decrTrust;              // Amount to decrease trust
-        public final long minCount;               // Minimum number of emitters before we can estimate location
-
-        RfCharacteristics( float gps,
-                           float min,
-                           float typical,
-                           float moveDist,
-                           long newTrust,
-                           long incr,
-                           long decr,
-                           long minC) {
-            reqdGpsAccuracy = gps;
-            minimumRange = min;
-            typicalRange = typical;
-            moveDetectDistance = moveDist;
-            discoveryTrust = newTrust;
-            incrTrust = incr;
-            decrTrust = decr;
-            minCount = minC;
-        }
-    }
-
     private RfCharacteristics ourCharacteristics;
 
+    private RfIdentification rfIdent;
     private EmitterType type;
     private String id;
     private long trust;
@@ -117,38 +72,51 @@ public class RfEmitter {
 
     private Observation mLastObservation;
 
-    private int ageSinceLastUse;        // Count of periods since last used (for caching purposes)
-
     private EmitterStatus status;
 
     RfEmitter(RfIdentification ident) {
-        initSelf(ident.getRfType(), ident.getRfId());
+        initSelf(ident);
     }
 
     RfEmitter(Observation o) {
-        initSelf(o.getIdent().getRfType(), o.getIdent().getRfId());
+        initSelf(o.getIdent());
         mLastObservation = o;
     }
 
     RfEmitter(EmitterType mType, String ident) {
-        initSelf(mType, ident);
+        initSelf(new RfIdentification(ident, mType));
+    }
+
+    /**
+     * Copy the persistent state (identification, coverage, trust, note and status)
+     * of another emitter. Used to take a snapshot of an emitter that can be written
+     * to flash while the original continues to be updated.
+     *
+     * @param other The emitter to copy
+     */
+    RfEmitter(RfEmitter other) {
+        initSelf(other.rfIdent);
+        if (other.coverage != null)
+            coverage = new BoundingBox(other.coverage);
+        trust = other.trust;
+        note = other.note;
+        status = other.status;
     }
 
     /**
      * Shared/uniform initialization, called from the various constructors we allow.
      *
-     * @param mType The type of the RF emitter (WLAN_24GHZ, MOBILE, etc.)
-     * @param ident The identification of the emitter. Must be unique within type
+     * @param ident The identification (type and ID) of the emitter.
      */
-    private void initSelf(EmitterType mType, String ident) {
-        type = mType;
-        id = ident;
+    private void initSelf(RfIdentification ident) {
+        rfIdent = ident;
+        type = ident.getRfType();
+        id = ident.getRfId();
         coverage = null;
         mLastObservation = null;
-        ourCharacteristics = getRfCharacteristics(mType);
+        ourCharacteristics = RfCharacteristics.forType(type);
         trust = ourCharacteristics.discoveryTrust;
         note = "";
-        resetAge();
         status = EmitterStatus.STATUS_UNKNOWN;
     }
 
@@ -182,7 +150,11 @@ public class RfEmitter {
     }
 
     public String getUniqueId() {
-        return getRfIdent().getUniqueId();
+        return rfIdent.getUniqueId();
+    }
+
+    public byte[] getUniqueKey() {
+        return rfIdent.getUniqueKey();
     }
 
     public EmitterType getType() {
@@ -208,7 +180,7 @@ public class RfEmitter {
     }
 
     public RfIdentification getRfIdent() {
-        return new RfIdentification(id, type);
+        return rfIdent;
     }
 
     public long getTrust() {
@@ -262,32 +234,6 @@ public class RfEmitter {
         return note;
     }
 
-    /**
-     * All RfEmitter objects are managed through a cache. The cache needs ages out
-     * emitters that have not been seen (or used) in a while. To do that it needs
-     * to maintain age information for each RfEmitter object. Having the RfEmitter
-     * object itself store the cache age is a bit of a hack, but we do it anyway.
-     *
-     * @return The current cache age.
-     */
-    public int getAge() {
-        return ageSinceLastUse;
-    }
-
-    /**
-     * Resets the cache age to zero.
-     */
-    public void resetAge() {
-        ageSinceLastUse = 0;
-    }
-
-    /**
-     * Increment the cache age for this object.
-     */
-    public void incrementAge() {
-        ageSinceLastUse++;
-    }
-
     /**
      * Periodically the cache sync's all dirty objects to the flash database.
      * This routine is called by the cache to determine if it needs to be sync'd.
@@ -306,9 +252,9 @@ public class RfEmitter {
      * by the cache when it is an appropriate time to assure the flash based
      * database is up to date with our current coverage, trust, etc.
      *
-     * @param db The database we should write our data to.
+     * @param db The database (or write-behind queue) we should write our data to.
      */
-    public void sync(Database db) {
+    public void sync(EmitterSink db) {
         EmitterStatus newStatus = status;
 
         switch (status) {
@@ -334,7 +280,7 @@ public class RfEmitter {
 
             case STATUS_CHANGED:
                 // In database but we have changes
-                if (trust < MINIMUM_TRUST) {
+                if (trust < RfCharacteristics.MINIMUM_TRUST) {
                     Log.d(TAG, "sync('" + logString() + "') - Trust below minimum, dropping from database.");
                     db.drop(this);
                 } else
@@ -354,77 +300,6 @@ public class RfEmitter {
         return "RF Emitter: Type=" + type + ", ID='" + id + "', Note='" + note + "'";
     }
 
-    /**
-     * Given an emitter type, return the various characteristics we need to know
-     * to model it.
-     *
-     * @param t An emitter type (WLAN_24GHZ, MOBILE, etc.)
-     * @return The characteristics needed to model the emitter
-     */
-    public static RfCharacteristics getRfCharacteristics(EmitterType t) {
-        switch (t) {
-            case WLAN_24GHZ:
-                // For 2.4 GHz, indoor range seems to be described as about 46 meters
-                // with outdoor range about 90 meters. Set the minimum range to be about
-                // 3/4 of the indoor range and the typical range somewhere between
-                // the indoor and outdoor ranges.
-                // However we've seem really, really long range detection in rural areas
-                // so base the move distance on that.
-                return new RfCharacteristics(
-                        20 * METERS,        // reqdGpsAccuracy
-                        35 * METERS,        // minimumRange
-                        65 * METERS,       // typicalRange
-                        300 * METERS,       // moveDetectDistance - Seen pretty long detection in very rural areas
-                        0,                  // discoveryTrust
-                        REQUIRED_TRUST/3,   // incrTrust
-                        1,                  // decrTrust
-                        2                   // minCount
-                );
-
-            case WLAN_5GHZ:
-                // For 2.4 GHz, indoor range seems to be described as about 46 meters
-                // with outdoor range about 90 meters. Set the minimum range to be about
-                // 3/4 of the indoor range and the typical range somewhere between
-                // the indoor and outdoor ranges.
-                // However we've seem really, really long range detection in rural areas
-                // so base the move distance on that.
-                return new RfCharacteristics(
-                        10 * METERS,        // reqdGpsAccuracy
-                        15 * METERS,        // minimumRange
-                        25 * METERS,       // typicalRange
-                        100 * METERS,       // moveDetectDistance - Seen pretty long detection in very rural areas
-                        0,                  // discoveryTrust
-                        REQUIRED_TRUST/3,   // incrTrust
-                        1,                  // decrTrust
-                        2                   // minCount
-                );
-
-            case MOBILE:
-                return new RfCharacteristics(
-                        100 * METERS,       // reqdGpsAccuracy
-                        500 * METERS,       // minimumRange
-                        2 * KM,             // typicalRange
-                        100 * KM,           // moveDetectDistance - In the desert towers cover large areas
-                        MAXIMUM_TRUST,      // discoveryTrust
-                        MAXIMUM_TRUST,      // incrTrust
-                        0,                  // decrTrust
-                        1                   // minCount
-                );
-        }
-
-        // Unknown emitter type, just throw out some values that make it unlikely that
-        // we will ever use it (require too accurate a GPS location, never increment trust, etc.).
-        return new RfCharacteristics(
-                2 * METERS,         // reqdGpsAccuracy
-                50 * METERS,        // minimumRange
-                50 * METERS,        // typicalRange
-                100 * METERS,       // moveDetectDistance
-                0,                  // discoveryTrust
-                0,                  // incrTrust
-                1,                  // decrTrust
-                99                  // minCount
-        );
-    }
 
     /**
      * Unfortunately some types of RF emitters are very mobile and a mobile emitter
@@ -435,9 +310,7 @@ public class RfEmitter {
     public void incrementTrust() {
         //Log.d(TAG, "incrementTrust('"+id+"') - entry.");
         if (canUpdate()) {
-            long newTrust = trust + ourCharacteristics.incrTrust;
-            if (newTrust > MAXIMUM_TRUST)
-                newTrust = MAXIMUM_TRUST;
+            long newTrust = ourCharacteristics.increased(trust);
             if (newTrust != trust) {
                 // Log.d(TAG, "incrementTrust('" + logString() + "') - trust change: " + trust + "->" + newTrust);
                 trust = newTrust;
@@ -453,7 +326,7 @@ public class RfEmitter {
     public void decrementTrust() {
         if (canUpdate()) {
             long oldTrust = trust;
-            trust -= ourCharacteristics.decrTrust;
+            trust = ourCharacteristics.decreased(trust);
             if (oldTrust != trust) {
                 // Log.d(TAG, "decrementTrust('" + logString() + "') - trust change: " + oldTrust + "->" + trust);
                 changeStatus(EmitterStatus.STATUS_CHANGED, "decrementTrust('" + logString() + "')");
@@ -472,7 +345,8 @@ public class RfEmitter {
     public void updateInfo(Database.EmitterInfo emitterInfo) {
         if (emitterInfo != null) {
             if (coverage == null)
-                coverage = new BoundingBox(emitterInfo);
+                coverage = new BoundingBox(emitterInfo.latitude, emitterInfo.longitude,
+                        emitterInfo.radius_ns, emitterInfo.radius_ew);
             //Log.d(TAG,"updateInfo() - Setting info for '"+id+"'");
             trust = emitterInfo.trust;
             note = emitterInfo.note;
@@ -484,32 +358,33 @@ public class RfEmitter {
      * Update our estimate of the coverage and location of the emitter based on a
      * position report from the GPS system.
      *
-     * @param gpsLoc A position report from a trusted (non RF emitter) source
+     * @param gps A position report from a trusted (non RF emitter) source
      */
-    public void updateLocation(Location gpsLoc) {
+    public void updateLocation(Position gps) {
 
         if (status == EmitterStatus.STATUS_BLACKLISTED)
             return;
 
-        if ((gpsLoc == null) || (gpsLoc.getAccuracy() > ourCharacteristics.reqdGpsAccuracy)) {
+        if ((gps == null) || (gps.accuracy > ourCharacteristics.reqdGpsAccuracy)) {
             // Log.d(TAG, "updateLocation("+logString()+") No GPS location or location inaccurate.");
             return;
         }
 
         if (coverage == null) {
             Log.d(TAG, "updateLocation("+logString()+") emitter is new.");
-            coverage = new BoundingBox(gpsLoc.getLatitude(), gpsLoc.getLongitude(), 0.0f);
+            coverage = new BoundingBox(gps.lat, gps.lon, 0.0f);
             changeStatus(EmitterStatus.STATUS_NEW, "updateLocation('"+logString()+"') New");
             return;
         }
 
         // Add the GPS sample to the known bounding box of the emitter.
 
-        if (coverage.update(gpsLoc.getLatitude(), gpsLoc.getLongitude())) {
+        if (coverage.update(gps.lat, gps.lon)) {
             // Bounding box has increased, see if it is now unbelievably large
             if (coverage.getRadius() >= ourCharacteristics.moveDetectDistance) {
-                Log.d(TAG, "updateLocation("+id+") emitter has moved (" + gpsLoc.distanceTo(_getLocation()) + ")");
-                coverage = new BoundingBox(gpsLoc.getLatitude(), gpsLoc.getLongitude(), 0.0f);
+                Log.d(TAG, "updateLocation("+id+") emitter has moved (" +
+                        Geometry.distance(gps.lat, gps.lon, coverage.getCenter_lat(), coverage.getCenter_lon()) + ")");
+                coverage = new BoundingBox(gps.lat, gps.lon, 0.0f);
                 trust = ourCharacteristics.discoveryTrust;
                 changeStatus(EmitterStatus.STATUS_CHANGED, "updateLocation('"+logString()+"') Moved");
             } else {
@@ -519,13 +394,13 @@ public class RfEmitter {
     }
 
     /**
-     * User facing location value. Differs from internal one in that we don't report
+     * User facing coverage value. Differs from internal one in that we don't report
      * locations that are guarded due to being new or moved.
      *
-     * @return The coverage estimate for our RF emitter or null if we don't trust our
-     * information.
+     * @return The coverage estimate and most recent observation details for our RF
+     * emitter or null if we don't trust our information.
      */
-    public  Location getLocation() {
+    public EmitterFix getFix() {
         // If we have no observation of the emitter we ought not give a
         // position estimate based on it.
         if (mLastObservation == null)
@@ -533,51 +408,27 @@ public class RfEmitter {
 
         // If we don't trust the location, we ought not give a position
         // estimate based on it.
-        if ((trust < REQUIRED_TRUST) || (status == EmitterStatus.STATUS_BLACKLISTED))
+        if (!RfCharacteristics.trusted(trust) || (status == EmitterStatus.STATUS_BLACKLISTED))
             return null;
 
-        // If we don't have a coverage estimate we will get back a null location
-        Location location = _getLocation();
-        if (location == null)
+        // If we don't have a coverage estimate we can't give a position
+        if (coverage == null)
             return null;
 
         // If we are unbelievably close to null island, don't report location
-        if (!BackendService.notNullIsland(location))
+        double lat = coverage.getCenter_lat();
+        double lon = coverage.getCenter_lon();
+        if (!BackendService.notNullIsland(lat, lon))
             return null;
 
-        // Time tags based on time of most recent observation
-        location.setTime(mLastObservation.getLastUpdateTimeMs());
-        location.setElapsedRealtimeNanos(mLastObservation.getElapsedRealtimeNanos());
-
-        Bundle extras = new Bundle();
-        extras.putString(LOC_RF_TYPE, type.toString());
-        extras.putString(LOC_RF_ID, id);
-        extras.putInt(LOC_ASU,mLastObservation.getAsu());
-        extras.putLong(LOC_MIN_COUNT, ourCharacteristics.minCount);
-        location.setExtras(extras);
-        return location;
-    }
-
-    /**
-     * If we have any coverage information, returns an estimate of that coverage.
-     * For convenience, we use the standard Location record as it contains a center
-     * point and radius (accuracy).
-     *
-     * @return Coverage estimate for emitter or null it does not exist.
-     */
-    private Location _getLocation() {
-        if (coverage == null)
-            return null;
-
-        final Location location = new Location(BackendService.LOCATION_PROVIDER);
-
-        location.setLatitude(coverage.getCenter_lat());
-        location.setLongitude(coverage.getCenter_lon());
-
-        // Hard limit the minimum accuracy based on the type of emitter
-        location.setAccuracy((float)Math.max(this.getRadius(),ourCharacteristics.minimumRange));
-
-        return location;
+        // Hard limit the minimum accuracy based on the type of emitter. Time
+        // tags based on time of most recent observation.
+        return new EmitterFix(lat, lon,
+                (float)Math.max(this.getRadius(),ourCharacteristics.minimumRange),
+                mLastObservation.getAsu(),
+                ourCharacteristics.minCount,
+                mLastObservation.getLastUpdateTimeMs(),
+                mLastObservation.getElapsedRealtimeNanos());
     }
 
     /**
@@ -0,0 +1,421 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Feeds a recorded trace through a pipeline of its own, as fast as it will go, and
+ * reports the throughput, the processing time of each reporting period and the
+ * positions computed.
+ *
+ * The pipeline's clock is set from the trace before each record, so the periods
+ * and the positions are those of the recorded session. The pipeline works on its
+ * own database, which starts empty or as a copy of a given database, and the
+ * changes are written directly so nothing depends on the timing of a writer thread.
+ * The database is opened, and upgraded if it is an older version, before the replay
+ * starts and the time that takes reported separately. It is left in place afterwards
+ * for inspection.
+ *
+ * The performance metrics of the replay's pipeline, cache and database are kept
+ * apart from the service's and written before the line for each period.
+ *
+ * A replay can take minutes, far longer than a dumpsys caller should be kept
+ * waiting, so it runs on a thread of its own. Only one runs at a time. While it
+ * runs we can report how far it has got, and afterwards the results.
+ */
+class TraceReplay {
+    private static final String TAG = "DejaVu Replay";
+
+    static final String DATABASE = "replay.db";
+
+    /**
+     * A clock that only moves when told to.
+     */
+    private static class VirtualClock implements Clock {
+        private long timeMs;
+        private long elapsedRealtimeNanos;
+
+        void set(long timeMs, long elapsedRealtimeNanos) {
+            this.timeMs = timeMs;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return timeMs;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedRealtimeNanos;
+        }
+    }
+
+    /**
+     * The outcome of a reporting period.
+     */
+    private static class Period {
+        final long timeMs;
+        final Position estimate;
+        final Position gps;
+        long nanos;
+
+        Period(long timeMs, Position estimate, Position gps) {
+            this.timeMs = timeMs;
+            this.estimate = estimate;
+            this.gps = gps;
+        }
+    }
+
+    private final Context context;
+
+    // The replay running, and the output of the last one to finish.
+    private Thread thread;
+    private File running;
+    private String result;
+
+    // Progress of the running replay, for the status.
+    private volatile long recordsDone;
+    private volatile long traceMsDone;
+
+    TraceReplay(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Start replaying a trace in the background.
+     *
+     * @param traceFile The trace
+     * @param seed The database to start with, null to start with an empty one
+     * @return False if a replay is already running
+     */
+    synchronized boolean start(final File traceFile, final File seed) {
+        if (thread != null)
+            return false;
+        running = traceFile;
+        recordsDone = 0;
+        traceMsDone = 0;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringWriter output = new StringWriter();
+                PrintWriter out = new PrintWriter(output);
+                try {
+                    TraceReplay.this.run(traceFile, seed, out);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "run() - Replay failed.", e);
+                    out.println("Replay: failed, " + e);
+                } finally {
+                    out.flush();
+                    finished(output.toString());
+                }
+            }
+        }, TAG);
+        thread.start();
+        return true;
+    }
+
+    private synchronized void finished(String output) {
+        result = output;
+        thread = null;
+    }
+
+    /**
+     * Write one line on the running replay, or on the last one if none is running.
+     *
+     * @param writer Where to write the status
+     */
+    synchronized void dumpStatus(PrintWriter writer) {
+        if (thread != null)
+            writer.println(String.format(Locale.US, "Replay: running %s, %d records, %.1f s of trace",
+                    running, recordsDone, traceMsDone / 1000.0));
+        else if (result != null)
+            writer.println("Replay: finished " + running + ", \"replay status\" for the results");
+    }
+
+    /**
+     * Write the status of the running replay, or the results of the last one.
+     *
+     * @param writer Where to write the results
+     */
+    synchronized void dumpResult(PrintWriter writer) {
+        if ((thread == null) && (result != null))
+            writer.print(result);
+        else if (thread != null)
+            dumpStatus(writer);
+        else
+            writer.println("Replay: none run.");
+    }
+
+    /**
+     * Replay a trace.
+     *
+     * @param traceFile The trace
+     * @param seed The database to start with, null to start with an empty one
+     * @param out Where to write the results
+     */
+    private void run(File traceFile, File seed, PrintWriter out) {
+        context.deleteDatabase(DATABASE);
+        if (seed != null) {
+            // Changes still in the seed's write ahead log are not in the file
+            // we copy. Move them into it first.
+            if (!checkpoint(seed)) {
+                out.println("Replay: can't checkpoint " + seed + ", it is busy or not a database.");
+                return;
+            }
+            try {
+                copy(seed, context.getDatabasePath(DATABASE));
+            } catch (IOException e) {
+                out.println("Replay: can't copy " + seed + ": " + e);
+                return;
+            }
+        }
+
+        Metrics metrics = new Metrics();
+        long openStart = System.nanoTime();
+        Database database = new Database(context, DATABASE, metrics);
+        database.getWritableDatabase();
+        database.close();
+        out.println(String.format(Locale.US, "Replay: database opened in %.1f ms",
+                (System.nanoTime() - openStart) / 1.0e6));
+
+        Trace.Reader trace;
+        try {
+            trace = new Trace.Reader(new BufferedInputStream(new FileInputStream(traceFile)));
+        } catch (IOException e) {
+            out.println("Replay: can't read " + traceFile + ": " + e);
+            return;
+        }
+
+        final VirtualClock clock = new VirtualClock();
+        final List<Period> periods = new ArrayList<>();
+        Cache cache = new Cache(context, DATABASE, Cache.DEFAULT_CAPACITY, false, metrics);
+        Pipeline pipeline = new Pipeline(cache, clock, new Pipeline.Listener() {
+            @Override
+            public void onPeriodEnd(Position estimate, Position gps) {
+                periods.add(new Period(clock.currentTimeMillis(), estimate, gps));
+            }
+        }, metrics);
+
+        long gpsRecords = 0;
+        long observationSets = 0;
+        long observations = 0;
+        long firstMs = 0;
+        long lastMs = 0;
+        long periodNanos = 0;
+        String error = null;
+
+        long start = System.nanoTime();
+        try {
+            Trace.Record record;
+            while ((record = trace.next()) != null) {
+                if ((gpsRecords + observationSets) == 0)
+                    firstMs = record.clockMs;
+                lastMs = record.clockMs;
+                clock.set(record.clockMs, record.clockNanos);
+
+                int periodsBefore = periods.size();
+                long t = System.nanoTime();
+                if (record.type == Trace.GPS) {
+                    gpsRecords++;
+                    pipeline.onGps(record.gps);
+                } else {
+                    observationSets++;
+                    observations += record.observations.size();
+                    pipeline.process(record.observations, record.timeMs);
+                }
+                periodNanos += System.nanoTime() - t;
+                recordsDone = gpsRecords + observationSets;
+                traceMsDone = lastMs - firstMs;
+
+                // The work since the previous period ended is charged to the new one.
+                if (periods.size() > periodsBefore) {
+                    periods.get(periods.size() - 1).nanos = periodNanos;
+                    periodNanos = 0;
+                }
+            }
+        } catch (EOFException e) {
+            error = "trace truncated";
+        } catch (IOException e) {
+            error = e.toString();
+        } finally {
+            cache.close();
+            try {
+                trace.close();
+            } catch (IOException e) {
+                Log.w(TAG, "run() - closing trace failed.", e);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        report(out, periods, gpsRecords, observationSets, observations,
+                lastMs - firstMs, elapsedNanos, metrics);
+        if (error != null)
+            out.println("Replay: stopped early, " + error);
+    }
+
+    private static void report(PrintWriter out, List<Period> periods,
+                               long gpsRecords, long observationSets, long observations,
+                               long traceMs, long elapsedNanos, Metrics metrics) {
+        double seconds = Math.max(elapsedNanos, 1) / 1.0e9;
+        out.println(String.format(Locale.US,
+                "Replay: %d GPS, %d observation sets, %d observations, %.1f s of trace",
+                gpsRecords, observationSets, observations, traceMs / 1000.0));
+        out.println(String.format(Locale.US,
+                "  processed in %.1f ms: %.0f sets/s, %.0f observations/s, %.0fx real time",
+                elapsedNanos / 1.0e6, observationSets / seconds, observations / seconds,
+                traceMs / 1000.0 / seconds));
+
+        long[] latency = new long[periods.size()];
+        List<Double> errors = new ArrayList<>();
+        int positions = 0;
+        for (int i = 0; i < latency.length; i++) {
+            Period p = periods.get(i);
+            latency[i] = p.nanos;
+            if (p.estimate != null) {
+                positions++;
+                if (p.gps != null)
+                    errors.add(Geometry.distance(p.estimate.lat, p.estimate.lon, p.gps.lat, p.gps.lon));
+            }
+        }
+        out.println("  periods " + periods.size() + ", positions " + positions);
+        if (latency.length > 0) {
+            Arrays.sort(latency);
+            long total = 0;
+            for (long l : latency)
+                total += l;
+            out.println(String.format(Locale.US,
+                    "  period latency ms: mean %.3f, 50%% %.3f, 90%% %.3f, 99%% %.3f, max %.3f",
+                    total / 1.0e6 / latency.length,
+                    percentile(latency, 0.5) / 1.0e6, percentile(latency, 0.9) / 1.0e6,
+                    percentile(latency, 0.99) / 1.0e6, latency[latency.length - 1] / 1.0e6));
+        }
+        if (!errors.isEmpty()) {
+            long[] meters = new long[errors.size()];
+            double total = 0;
+            for (int i = 0; i < meters.length; i++) {
+                meters[i] = Math.round(errors.get(i));
+                total += errors.get(i);
+            }
+            Arrays.sort(meters);
+            out.println(String.format(Locale.US,
+                    "  distance from GPS m: mean %.1f, 50%% %d, 90%% %d, max %d",
+                    total / meters.length, percentile(meters, 0.5), percentile(meters, 0.9),
+                    meters[meters.length - 1]));
+        }
+
+        metrics.dump(out);
+
+        out.println("time,latitude,longitude,accuracy,gpsLatitude,gpsLongitude,latencyMs");
+        for (Period p : periods) {
+            StringBuilder line = new StringBuilder();
+            line.append(p.timeMs).append(',');
+            if (p.estimate != null)
+                line.append(String.format(Locale.US, "%.7f,%.7f,%.1f,",
+                        p.estimate.lat, p.estimate.lon, p.estimate.accuracy));
+            else
+                line.append(",,,");
+            if (p.gps != null)
+                line.append(String.format(Locale.US, "%.7f,%.7f,", p.gps.lat, p.gps.lon));
+            else
+                line.append(",,");
+            line.append(String.format(Locale.US, "%.3f", p.nanos / 1.0e6));
+            out.println(line);
+        }
+    }
+
+    /**
+     * @param sorted Values in increasing order, not empty
+     * @param fraction The fraction of values that are at or below the result
+     * @return The percentile
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        int i = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.min(Math.max(i, 0), sorted.length - 1)];
+    }
+
+    /**
+     * Copy everything in a database's write ahead log into the database file and
+     * empty the log, so that the file alone holds the whole database. The database
+     * may be open elsewhere, e.g. it is our live one.
+     *
+     * @param file The database
+     * @return False if the log could not be emptied
+     */
+    private static boolean checkpoint(File file) {
+        SQLiteDatabase db = null;
+        Cursor cursor = null;
+        try {
+            // Open in WAL mode, otherwise opening switches the journal mode of the file.
+            db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+            cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE);", null);
+            // The first column is 1 if a reader or writer kept the checkpoint from finishing.
+            return cursor.moveToFirst() && (cursor.getInt(0) == 0);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "checkpoint() - " + file + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            if (db != null)
+                db.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        File dir = to.getParentFile();
+        if ((dir != null) && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
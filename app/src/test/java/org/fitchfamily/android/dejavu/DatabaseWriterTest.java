@@ -0,0 +1,68 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalescing of the changes queued for the database writer.
+ */
+public class DatabaseWriterTest {
+    private static final RfEmitter FIRST = new RfEmitter(EmitterType.WLAN_24GHZ, "02:00:00:00:00:01");
+    private static final RfEmitter SECOND = new RfEmitter(FIRST);
+
+    private static DatabaseWriter.Pending queue(DatabaseWriter.Op first, DatabaseWriter.Op second) {
+        DatabaseWriter.Pending old = DatabaseWriter.combine(null, first, false, FIRST);
+        assertNotNull(old);
+        return DatabaseWriter.combine(old, second, false, SECOND);
+    }
+
+    @Test
+    public void insertThenUpdateIsInsert() {
+        DatabaseWriter.Pending p = queue(DatabaseWriter.Op.INSERT, DatabaseWriter.Op.UPDATE);
+        assertEquals(DatabaseWriter.Op.INSERT, p.op);
+        assertFalse(p.dropFirst);
+    }
+
+    @Test
+    public void insertThenDropIsNothing() {
+        assertNull(queue(DatabaseWriter.Op.INSERT, DatabaseWriter.Op.DROP));
+    }
+
+    @Test
+    public void dropThenInsertDropsFirst() {
+        DatabaseWriter.Pending p = queue(DatabaseWriter.Op.DROP, DatabaseWriter.Op.INSERT);
+        assertEquals(DatabaseWriter.Op.INSERT, p.op);
+        assertTrue(p.dropFirst);
+    }
+
+    @Test
+    public void dropInsertDropIsDrop() {
+        // The row dropped first may exist, so it must still be dropped.
+        DatabaseWriter.Pending p = queue(DatabaseWriter.Op.DROP, DatabaseWriter.Op.INSERT);
+        p = DatabaseWriter.combine(p, DatabaseWriter.Op.DROP, false, SECOND);
+        assertEquals(DatabaseWriter.Op.DROP, p.op);
+    }
+
+    @Test
+    public void dropThenUpdateIsDrop() {
+        DatabaseWriter.Pending p = queue(DatabaseWriter.Op.DROP, DatabaseWriter.Op.UPDATE);
+        assertEquals(DatabaseWriter.Op.DROP, p.op);
+        assertTrue(p.isDropped());
+    }
+
+    @Test
+    public void updateThenUpdateIsUpdate() {
+        DatabaseWriter.Pending p = queue(DatabaseWriter.Op.UPDATE, DatabaseWriter.Op.UPDATE);
+        assertEquals(DatabaseWriter.Op.UPDATE, p.op);
+        assertFalse(p.dropFirst);
+    }
+
+    @Test
+    public void failedInsertThenDropIsNothing() {
+        // A batch that failed is combined with the changes queued while it was written.
+        DatabaseWriter.Pending failed = DatabaseWriter.combine(null, DatabaseWriter.Op.INSERT, false, FIRST);
+        DatabaseWriter.Pending newer = DatabaseWriter.combine(null, DatabaseWriter.Op.DROP, false, SECOND);
+        assertNull(DatabaseWriter.combine(failed, newer.op, newer.dropFirst, SECOND));
+    }
+}
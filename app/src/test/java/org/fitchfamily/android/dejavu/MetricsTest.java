@@ -0,0 +1,74 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Registering metrics by name.
+ */
+public class MetricsTest {
+    private static final Metrics.Gauge ZERO = new Metrics.Gauge() {
+        @Override
+        public long get() {
+            return 0;
+        }
+    };
+
+    @Test
+    public void sameNameSameMetric() {
+        Metrics metrics = new Metrics();
+        assertSame(metrics.counter("a"), metrics.counter("a"));
+        assertSame(metrics.histogram("b"), metrics.histogram("b"));
+        metrics.gauge("c", ZERO);
+        metrics.gauge("c", ZERO);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void histogramNamedAsCounter() {
+        Metrics metrics = new Metrics();
+        metrics.counter("a");
+        metrics.histogram("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void counterNamedAsHistogram() {
+        Metrics metrics = new Metrics();
+        metrics.histogram("a");
+        metrics.counter("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void counterNamedAsGauge() {
+        Metrics metrics = new Metrics();
+        metrics.gauge("a", ZERO);
+        metrics.counter("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void gaugeNamedAsCounter() {
+        Metrics metrics = new Metrics();
+        metrics.counter("a");
+        metrics.gauge("a", ZERO);
+    }
+
+    @Test
+    public void mismatchKeepsOriginal() {
+        Metrics metrics = new Metrics();
+        metrics.counter("a").add(5);
+        try {
+            metrics.histogram("a");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(5, metrics.counter("a").get());
+
+        StringWriter out = new StringWriter();
+        metrics.dump(new PrintWriter(out));
+        assertTrue(out.toString().contains("  a: 5"));
+    }
+}
@@ -0,0 +1,115 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Repeatable synthetic inputs for the benchmarks. Everything is generated from a
+ * seed so runs can be compared with each other.
+ */
+final class BenchmarkData {
+    static final double CENTER_LAT = 47.6;
+    static final double CENTER_LON = -122.3;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Emitters scattered at random in a square around CENTER_LAT, CENTER_LON. Mostly
+     * WLANs with a few mobile towers, as in a typical scan, each with a coverage
+     * radius between the minimum and typical range for its type.
+     *
+     * @param count Number of emitters
+     * @param spreadMeters Half the width of the square
+     * @param seed Seed for the random numbers
+     * @return The emitters
+     */
+    static List<EmitterFix> fixes(int count, double spreadMeters, long seed) {
+        Random rnd = new Random(seed);
+        double cosLat = Geometry.cosLat(CENTER_LAT);
+        List<EmitterFix> rslt = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            EmitterType type;
+            int pick = rnd.nextInt(20);
+            if (pick == 0)
+                type = EmitterType.MOBILE;
+            else if (pick < 5)
+                type = EmitterType.WLAN_5GHZ;
+            else
+                type = EmitterType.WLAN_24GHZ;
+            RfCharacteristics rfChar = RfCharacteristics.forType(type);
+
+            double north = (rnd.nextDouble() * 2.0 - 1.0) * spreadMeters;
+            double east = (rnd.nextDouble() * 2.0 - 1.0) * spreadMeters;
+            float accuracy = rfChar.minimumRange +
+                    rnd.nextFloat() * (rfChar.typicalRange - rfChar.minimumRange);
+            rslt.add(new EmitterFix(CENTER_LAT + north * Geometry.METER_TO_DEG,
+                    CENTER_LON + east * Geometry.METER_TO_DEG / cosLat,
+                    accuracy,
+                    Observation.MINIMUM_ASU + rnd.nextInt(Observation.MAXIMUM_ASU),
+                    rfChar.minCount,
+                    0, 0));
+        }
+        return rslt;
+    }
+
+    /**
+     * Random points in a square around CENTER_LAT, CENTER_LON.
+     *
+     * @param count Number of points
+     * @param spreadMeters Half the width of the square
+     * @param seed Seed for the random numbers
+     * @return Latitudes in the first count entries, longitudes in the second count
+     */
+    static double[] points(int count, double spreadMeters, long seed) {
+        Random rnd = new Random(seed);
+        double cosLat = Geometry.cosLat(CENTER_LAT);
+        double[] rslt = new double[count * 2];
+        for (int i = 0; i < count; i++) {
+            rslt[i] = CENTER_LAT + (rnd.nextDouble() * 2.0 - 1.0) * spreadMeters * Geometry.METER_TO_DEG;
+            rslt[count + i] = CENTER_LON +
+                    (rnd.nextDouble() * 2.0 - 1.0) * spreadMeters * Geometry.METER_TO_DEG / cosLat;
+        }
+        return rslt;
+    }
+
+    /**
+     * @param count Number of addresses
+     * @param seed Seed for the random numbers
+     * @return Random WLAN MAC addresses formatted as in a scan result
+     */
+    static String[] macAddresses(int count, long seed) {
+        Random rnd = new Random(seed);
+        String[] rslt = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder(17);
+            for (int b = 0; b < 6; b++) {
+                if (b > 0)
+                    sb.append(':');
+                sb.append(String.format(Locale.US, "%02x", rnd.nextInt(256)));
+            }
+            rslt[i] = sb.toString();
+        }
+        return rslt;
+    }
+}
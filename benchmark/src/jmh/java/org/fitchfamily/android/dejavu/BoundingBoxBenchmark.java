@@ -0,0 +1,78 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding GPS positions to the coverage of an emitter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BoundingBoxBenchmark {
+    private static final int COUNT = 1024;          // Must be a power of 2
+
+    /**
+     * Half width of the area the positions are in, about the coverage of a WLAN,
+     * and of a mobile tower.
+     */
+    @Param({"50", "2000"})
+    public double spreadMeters;
+
+    private double[] points;
+    private BoundingBox box;
+    private int next;
+
+    @Setup
+    public void setup() {
+        points = BenchmarkData.points(COUNT, spreadMeters, 4);
+        box = new BoundingBox(BenchmarkData.CENTER_LAT, BenchmarkData.CENTER_LON, 0.0f);
+    }
+
+    /**
+     * Update an established coverage, which rarely grows.
+     */
+    @Benchmark
+    public boolean update() {
+        int i = next++ & (COUNT - 1);
+        return box.update(points[i], points[COUNT + i]);
+    }
+
+    /**
+     * Learn a new coverage from a number of positions, which grows often.
+     */
+    @Benchmark
+    public Object learn() {
+        int start = (next++ & (COUNT / 32 - 1)) * 32;
+        BoundingBox learning = new BoundingBox(points[start], points[COUNT + start], 0.0f);
+        for (int i = start + 1; i < start + 32; i++)
+            learning.update(points[i], points[COUNT + i]);
+        return learning;
+    }
+}
@@ -0,0 +1,62 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the largest group of mutually compatible emitters, the core of
+ * BackendService.culledEmitters(), for a range of scan sizes and densities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusteringBenchmark {
+    @Param({"10", "50", "200"})
+    public int emitters;
+
+    /**
+     * Half width of the area the emitters are in. Small is a dense indoor scan where
+     * everything overlaps, large is spread out with several separate groups.
+     */
+    @Param({"50", "500", "5000"})
+    public double spreadMeters;
+
+    private List<EmitterFix> fixes;
+
+    @Setup
+    public void setup() {
+        fixes = BenchmarkData.fixes(emitters, spreadMeters, 1);
+    }
+
+    @Benchmark
+    public int largestGroup() {
+        return new EmitterClusters(fixes).largestGroup().size();
+    }
+}
@@ -0,0 +1,59 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating the identification for an emitter in a scan result, which computes
+ * its database key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdentificationBenchmark {
+    private static final int COUNT = 1024;          // Must be a power of 2
+
+    private String[] bssids;
+    private int next;
+
+    @Setup
+    public void setup() {
+        bssids = BenchmarkData.macAddresses(COUNT, 3);
+    }
+
+    @Benchmark
+    public Object wlan() {
+        return new RfIdentification(bssids[next++ & (COUNT - 1)], EmitterType.WLAN_24GHZ);
+    }
+
+    @Benchmark
+    public Object mobile() {
+        return new RfIdentification("LTE/310/260/" + (next++ & (COUNT - 1)) + "/4711",
+                EmitterType.MOBILE);
+    }
+}
@@ -0,0 +1,73 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting the filtered GPS position after a gap since the filter was last brought
+ * up to date. Each call moves time forward by the gap, so every call predicts
+ * across the whole gap. The time taken should not depend on the gap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KalmanBenchmark {
+    /**
+     * One second (a GPS update was just received), a minute and an hour (indoors).
+     */
+    @Param({"1000", "60000", "3600000"})
+    public long gapMs;
+
+    private Kalman kalman;
+    private Kalman1Dim tracker;
+    private long timeMs;
+
+    @Setup
+    public void setup() {
+        timeMs = 1500000000000L;
+        kalman = new Kalman(new Position(BenchmarkData.CENTER_LAT, BenchmarkData.CENTER_LON,
+                10.0f, timeMs, 0, 1), 3.0);
+        tracker = new Kalman1Dim(3.0 * Geometry.METER_TO_DEG, timeMs);
+        tracker.setState(BenchmarkData.CENTER_LAT, 0.0, 10.0 * Geometry.METER_TO_DEG);
+    }
+
+    @Benchmark
+    public void getPosition(Blackhole bh) {
+        timeMs += gapMs;
+        bh.consume(kalman.getPosition(timeMs, timeMs * 1000000L));
+    }
+
+    @Benchmark
+    public double predict() {
+        timeMs += gapMs;
+        tracker.predict(0.0, timeMs);
+        return tracker.getPosition();
+    }
+}
@@ -22,8 +22,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 9/28/17.
  */
 
-import android.location.Location;
-
 class BoundingBox {
     private double north;
     private double south;
@@ -39,28 +37,26 @@ class BoundingBox {
         reset();
     }
 
-    BoundingBox(Location loc) {
-        reset();
-        update(loc);
-    }
-
     BoundingBox(double lat, double lon, float radius) {
         reset();
         update(lat, lon, radius);
     }
 
-    BoundingBox(Database.EmitterInfo info) {
-        reset();
-        update(info.latitude, info.longitude, info.radius_ns, info.radius_ew);
+    BoundingBox(BoundingBox other) {
+        north = other.north;
+        south = other.south;
+        east = other.east;
+        west = other.west;
+        center_lat = other.center_lat;
+        center_lon = other.center_lon;
+        radius = other.radius;
+        radius_ns = other.radius_ns;
+        radius_ew = other.radius_ew;
     }
 
-    /**
-     * Expand, if needed, the bounding box to include the coverage area
-     * implied by a location.
-     * @param loc A record describing the coverage of an RF emitter.
-     */
-    private boolean update(Location loc) {
-        return update(loc.getLatitude(), loc.getLongitude(), loc.getAccuracy());
+    BoundingBox(double lat, double lon, float radiusNS, float radiusEW) {
+        reset();
+        update(lat, lon, radiusNS, radiusEW);
     }
 
     /**
@@ -85,11 +81,11 @@ class BoundingBox {
      * @param radius_ew The distance from the center to the east (or west) edge.
      */
     private boolean update(double lat, double lon, float radius_ns, float radius_ew) {
-        double locNorth = lat + (radius_ns * BackendService.METER_TO_DEG);
-        double locSouth = lat - (radius_ns * BackendService.METER_TO_DEG);
+        double locNorth = lat + (radius_ns * Geometry.METER_TO_DEG);
+        double locSouth = lat - (radius_ns * Geometry.METER_TO_DEG);
         double cosLat = Math.cos(Math.toRadians(lat));
-        double locEast = lon + (radius_ew * BackendService.METER_TO_DEG) * cosLat;
-        double locWest = lon - (radius_ew * BackendService.METER_TO_DEG) * cosLat;
+        double locEast = lon + (radius_ew * Geometry.METER_TO_DEG) * cosLat;
+        double locWest = lon - (radius_ew * Geometry.METER_TO_DEG) * cosLat;
 
         // Can't just "update(locNorth, locWest) || update(locSouth, locEast)"
         // because we need the second update to be called even if the first
@@ -129,9 +125,9 @@ class BoundingBox {
             center_lat = (north + south)/2.0;
             center_lon = (east + west)/2.0;
 
-            radius_ns = (float)((north - center_lat) * BackendService.DEG_TO_METER);
-            double cosLat = Math.max(Math.cos(Math.toRadians(center_lat)),BackendService.MIN_COS);
-            radius_ew = (float)(((east - center_lon) * BackendService.DEG_TO_METER) / cosLat);
+            radius_ns = (float)((north - center_lat) * Geometry.DEG_TO_METER);
+            double cosLat = Math.max(Math.cos(Math.toRadians(center_lat)),Geometry.MIN_COS);
+            radius_ew = (float)(((east - center_lon) * Geometry.DEG_TO_METER) / cosLat);
 
             radius = Math.sqrt(radius_ns*radius_ns + radius_ew*radius_ew);
         }
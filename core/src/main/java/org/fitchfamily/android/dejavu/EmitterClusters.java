@@ -0,0 +1,162 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups the coverage areas of the emitters seen in a reporting period into clumps
+ * of believably close emitters.
+ *
+ * Two coverage areas are compatible if they overlap, that is if the distance between
+ * their centers is no more than the sum of their radii. Starting from each emitter in
+ * turn, a group is grown by adding, in the order the coverages were given, each
+ * emitter compatible with every member already in the group. The largest group found
+ * is the most believable set of coverages to use to compute a position.
+ *
+ * Rather than comparing every emitter against every member of every group, we first
+ * find all the compatible pairs with a sweep on latitude, which only compares
+ * emitters close enough north-south to possibly overlap. The pairs are kept as one
+ * bit set per emitter so growing a group is a series of bit set intersections.
+ *
+ * Distances use the flat earth approximation in Geometry with the cosine of each
+ * latitude computed once.
+ */
+class EmitterClusters {
+    private final List<EmitterFix> fixes;
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] cosLat;
+    private final double[] radius;
+    private final BitSet[] compatible;
+
+    /**
+     * @param fixes The coverage areas of the emitters seen
+     */
+    EmitterClusters(Collection<EmitterFix> fixes) {
+        this.fixes = new ArrayList<>(fixes);
+        int count = this.fixes.size();
+        lat = new double[count];
+        lon = new double[count];
+        cosLat = new double[count];
+        radius = new double[count];
+        compatible = new BitSet[count];
+        for (int i = 0; i < count; i++) {
+            EmitterFix fix = this.fixes.get(i);
+            lat[i] = fix.lat;
+            lon[i] = fix.lon;
+            cosLat[i] = fix.cosLat;
+            radius[i] = fix.accuracy;
+        }
+        findCompatiblePairs();
+    }
+
+    /**
+     * Find the largest group of mutually compatible coverage areas.
+     *
+     * @return The largest group, empty if there were no coverage areas. If several
+     * groups are the largest, the one started from the earliest coverage is returned.
+     */
+    List<EmitterFix> largestGroup() {
+        BitSet best = new BitSet();
+        int bestSize = 0;
+        for (int seed = 0; seed < compatible.length; seed++) {
+            // No group started here can be larger than the number of
+            // emitters compatible with the seed.
+            if (compatible[seed].cardinality() <= bestSize)
+                continue;
+            BitSet group = growGroup(seed);
+            int size = group.cardinality();
+            if (size > bestSize) {
+                best = group;
+                bestSize = size;
+            }
+        }
+
+        List<EmitterFix> rslt = new ArrayList<>(bestSize);
+        for (int i = best.nextSetBit(0); i >= 0; i = best.nextSetBit(i + 1))
+            rslt.add(fixes.get(i));
+        return rslt;
+    }
+
+    /**
+     * Grow a group from a seed. Coverages are considered in order and each one that
+     * is compatible with all the members so far is added.
+     *
+     * @param seed The index of the coverage to start from
+     * @return The indexes of the coverages in the group
+     */
+    private BitSet growGroup(int seed) {
+        BitSet group = new BitSet(compatible.length);
+        group.set(seed);
+
+        // Candidates are the coverages compatible with every member of the group.
+        BitSet candidates = (BitSet) compatible[seed].clone();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            group.set(i);
+            candidates.and(compatible[i]);
+        }
+        return group;
+    }
+
+    /**
+     * Fill in the compatible bit sets by sweeping north through the coverages. Each
+     * coverage is only compared with the ones north of it that are close enough
+     * to overlap with the largest coverage.
+     */
+    private void findCompatiblePairs() {
+        int count = compatible.length;
+        Integer[] byLatitude = new Integer[count];
+        double maxRadius = 0.0;
+        for (int i = 0; i < count; i++) {
+            compatible[i] = new BitSet(count);
+            compatible[i].set(i);
+            byLatitude[i] = i;
+            maxRadius = Math.max(maxRadius, radius[i]);
+        }
+        Arrays.sort(byLatitude, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(lat[lhs], lat[rhs]);
+            }
+        });
+
+        // The north-south distance alone is never more than the full distance,
+        // so once it is too far no coverage further north can overlap.
+        for (int i = 0; i < count; i++) {
+            int a = byLatitude[i];
+            double reach = radius[a] + maxRadius;
+            for (int j = i + 1; j < count; j++) {
+                int b = byLatitude[j];
+                if ((lat[b] - lat[a]) * Geometry.DEG_TO_METER > reach)
+                    break;
+                if (Geometry.overlaps(lat[a], lon[a], cosLat[a], radius[a],
+                        lat[b], lon[b], cosLat[b], radius[b])) {
+                    compatible[a].set(b);
+                    compatible[b].set(a);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The coverage of an emitter together with the details of our most recent observation
+ * of it. This is what the position computation needs from each emitter we have seen.
+ *
+ * We used to pass this around as a Location with the extra values in a Bundle, which
+ * meant several allocations per emitter per reporting period and string keyed lookups
+ * to get the values back out. Now only the final position report is a Location.
+ */
+final class EmitterFix {
+    /** Latitude of the center of coverage in degrees */
+    final double lat;
+    /** Longitude of the center of coverage in degrees */
+    final double lon;
+    /** Cosine of the latitude */
+    final double cosLat;
+    /** Estimated radius of coverage in meters */
+    final float accuracy;
+    /** Signal strength of the most recent observation */
+    final int asu;
+    /** Minimum number of emitters of this type needed for a believable position */
+    final long minCount;
+    /** Time of the most recent observation */
+    final long timeMs;
+    /** Elapsed realtime of the most recent observation */
+    final long elapsedRealtimeNanos;
+
+    EmitterFix(double lat, double lon, float accuracy, int asu, long minCount,
+               long timeMs, long elapsedRealtimeNanos) {
+        this.lat = lat;
+        this.lon = lon;
+        this.cosLat = Geometry.cosLat(lat);
+        this.accuracy = accuracy;
+        this.asu = asu;
+        this.minCount = minCount;
+        this.timeMs = timeMs;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+    }
+}
@@ -0,0 +1,118 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Distance calculations for the hot paths.
+ *
+ * Location.distanceTo() iterates on the WGS84 ellipsoid, which is far more accuracy
+ * than we need to decide whether emitter coverages overlap. Like the rest of our
+ * math (BoundingBox, WeightedAverage, Kalman) we treat the earth as locally flat:
+ * a degree of latitude is DEG_TO_METER and a degree of longitude is DEG_TO_METER
+ * times the cosine of the latitude.
+ *
+ * For the few kilometer distances we care about the result is within about one
+ * percent of distanceTo(), mostly from the length of a degree of latitude varying
+ * with latitude on the ellipsoid. The error grows with distance but stays small
+ * enough to tell near from far.
+ *
+ * The cosine of the latitude is passed in so callers comparing many points can
+ * compute it once per point rather than once per comparison.
+ */
+final class Geometry {
+    static final double DEG_TO_METER = 111225.0;
+    static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
+    static final double MIN_COS = 0.01;      // for things that are dividing by the cosine
+
+    private Geometry() {
+    }
+
+    /**
+     * @param lat A latitude in degrees
+     * @return The cosine of the latitude
+     */
+    static double cosLat(double lat) {
+        return Math.cos(Math.toRadians(lat));
+    }
+
+    /**
+     * Distance between two points using cosines of their latitudes already computed.
+     *
+     * @param lat1 Latitude of the first point in degrees
+     * @param lon1 Longitude of the first point in degrees
+     * @param cosLat1 Cosine of the first latitude
+     * @param lat2 Latitude of the second point in degrees
+     * @param lon2 Longitude of the second point in degrees
+     * @param cosLat2 Cosine of the second latitude
+     * @return Distance in meters
+     */
+    static double distance(double lat1, double lon1, double cosLat1,
+                           double lat2, double lon2, double cosLat2) {
+        return Math.sqrt(distanceSquared(lat1, lon1, cosLat1, lat2, lon2, cosLat2));
+    }
+
+    /**
+     * Distance between two points.
+     *
+     * @param lat1 Latitude of the first point in degrees
+     * @param lon1 Longitude of the first point in degrees
+     * @param lat2 Latitude of the second point in degrees
+     * @param lon2 Longitude of the second point in degrees
+     * @return Distance in meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        return distance(lat1, lon1, cosLat(lat1), lat2, lon2, cosLat(lat2));
+    }
+
+    /**
+     * Check if two circles overlap (or touch).
+     *
+     * @param lat1 Latitude of the center of the first circle in degrees
+     * @param lon1 Longitude of the center of the first circle in degrees
+     * @param cosLat1 Cosine of the first latitude
+     * @param radius1 Radius of the first circle in meters
+     * @param lat2 Latitude of the center of the second circle in degrees
+     * @param lon2 Longitude of the center of the second circle in degrees
+     * @param cosLat2 Cosine of the second latitude
+     * @param radius2 Radius of the second circle in meters
+     * @return True if the distance between the centers is no more than the sum of the radii
+     */
+    static boolean overlaps(double lat1, double lon1, double cosLat1, double radius1,
+                            double lat2, double lon2, double cosLat2, double radius2) {
+        double reach = radius1 + radius2;
+        return distanceSquared(lat1, lon1, cosLat1, lat2, lon2, cosLat2) <= reach * reach;
+    }
+
+    /**
+     * The square of the distance, so comparisons can skip the square root. The scale
+     * of a degree of longitude is taken from the average of the two cosines, which
+     * is close to the cosine of the mid latitude for nearby points.
+     */
+    private static double distanceSquared(double lat1, double lon1, double cosLat1,
+                                          double lat2, double lon2, double cosLat2) {
+        double dLon = lon2 - lon1;
+        if (dLon > 180.0)
+            dLon -= 360.0;
+        else if (dLon < -180.0)
+            dLon += 360.0;
+        double north = (lat2 - lat1) * DEG_TO_METER;
+        double east = dLon * DEG_TO_METER * (cosLat1 + cosLat2) * 0.5;
+        return north * north + east * east;
+    }
+}
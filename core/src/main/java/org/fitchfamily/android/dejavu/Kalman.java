@@ -53,10 +53,6 @@ package org.fitchfamily.android.dejavu;
  *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import android.location.Location;
-import android.os.Bundle;
-import android.os.SystemClock;
-
 /**
  * A two dimensional Kalman filter for estimating actual position from multiple
  * measurements. We cheat and use two one dimensional Kalman filters which works
@@ -95,27 +91,27 @@ class Kalman {
      * @param location
      */
 
-    public Kalman(Location location, double coordinateNoise) {
-        final double accuracy = location.getAccuracy();
-        final double coordinateNoiseDegrees = coordinateNoise * BackendService.METER_TO_DEG;
+    public Kalman(Position location, double coordinateNoise) {
+        final double accuracy = location.accuracy;
+        final double coordinateNoiseDegrees = coordinateNoise * Geometry.METER_TO_DEG;
         double position, noise;
-        long timeMs = location.getTime();
+        long timeMs = location.timeMs;
 
         // Latitude
-        position = location.getLatitude();
-        noise = accuracy * BackendService.METER_TO_DEG;
+        position = location.lat;
+        noise = accuracy * Geometry.METER_TO_DEG;
         mLatTracker = new Kalman1Dim(coordinateNoiseDegrees, timeMs);
         mLatTracker.setState(position, 0.0, noise);
 
         // Longitude
-        position = location.getLongitude();
-        noise = accuracy * Math.cos(Math.toRadians(location.getLatitude())) * BackendService.METER_TO_DEG;
+        position = location.lon;
+        noise = accuracy * Math.cos(Math.toRadians(location.lat)) * Geometry.METER_TO_DEG;
         mLonTracker = new Kalman1Dim(coordinateNoiseDegrees, timeMs);
         mLonTracker.setState(position, 0.0, noise);
 
         // Altitude
-        if (location.hasAltitude()) {
-            position = location.getAltitude();
+        if (location.hasAltitude) {
+            position = location.altitude;
             noise = accuracy;
             mAltTracker = new Kalman1Dim(ALTITUDE_NOISE, timeMs);
             mAltTracker.setState(position, 0.0, noise);
@@ -124,32 +120,32 @@ class Kalman {
         samples = 1;
     }
 
-    public synchronized void update(Location location) {
+    public synchronized void update(Position location) {
         if (location == null)
             return;
 
         // Reusable
-        final double accuracy = location.getAccuracy();
+        final double accuracy = location.accuracy;
         double position, noise;
-        long timeMs = location.getTime();
+        long timeMs = location.timeMs;
 
         predict(timeMs);
         mTimeOfUpdate = timeMs;
         samples++;
 
         // Latitude
-        position = location.getLatitude();
-        noise = accuracy * BackendService.METER_TO_DEG;
+        position = location.lat;
+        noise = accuracy * Geometry.METER_TO_DEG;
         mLatTracker.update(position, noise);
 
         // Longitude
-        position = location.getLongitude();
-        noise = accuracy * Math.cos(Math.toRadians(location.getLatitude())) * BackendService.METER_TO_DEG ;
+        position = location.lon;
+        noise = accuracy * Math.cos(Math.toRadians(location.lat)) * Geometry.METER_TO_DEG ;
         mLonTracker.update(position, noise);
 
         // Altitude
-        if (location.hasAltitude()) {
-            position = location.getAltitude();
+        if (location.hasAltitude) {
+            position = location.altitude;
             noise = accuracy;
             if (mAltTracker == null) {
                 mAltTracker = new Kalman1Dim(ALTITUDE_NOISE, timeMs);
@@ -177,41 +173,36 @@ class Kalman {
         return samples;
     }
 
-    public synchronized Location getLocation() {
-        Long timeMs = System.currentTimeMillis();
-        final Location location = new Location(BackendService.LOCATION_PROVIDER);
-
+    /**
+     * Our position estimate at a given time.
+     *
+     * @param timeMs The time the estimate is wanted for, normally now
+     * @param elapsedRealtimeNanos The elapsed realtime to mark the estimate with
+     * @return The filter state predicted to the time
+     */
+    public synchronized Position getPosition(long timeMs, long elapsedRealtimeNanos) {
         predict(timeMs);
-        location.setTime(timeMs);
-        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-        location.setLatitude(mLatTracker.getPosition());
-        location.setLongitude(mLonTracker.getPosition());
-        if (mAltTracker != null)
-            location.setAltitude(mAltTracker.getPosition());
+        double lat = mLatTracker.getPosition();
+        double lon = mLonTracker.getPosition();
 
-        float accuracy = (float) (mLatTracker.getAccuracy() * BackendService.DEG_TO_METER);
+        float accuracy = (float) (mLatTracker.getAccuracy() * Geometry.DEG_TO_METER);
         if (accuracy < MIN_ACCURACY)
             accuracy = MIN_ACCURACY;
-        location.setAccuracy(accuracy);
 
         // Derive speed from degrees/ms in lat and lon
-        double latVeolocity = mLatTracker.getVelocity() * BackendService.DEG_TO_METER;
-        double lonVeolocity = mLonTracker.getVelocity() * BackendService.DEG_TO_METER *
-                Math.cos(Math.toRadians(location.getLatitude()));
+        double latVeolocity = mLatTracker.getVelocity() * Geometry.DEG_TO_METER;
+        double lonVeolocity = mLonTracker.getVelocity() * Geometry.DEG_TO_METER *
+                Math.cos(Math.toRadians(lat));
         float speed = (float) Math.sqrt((latVeolocity*latVeolocity)+(lonVeolocity*lonVeolocity));
-        location.setSpeed(speed);
 
         // Compute bearing only if we are moving. Report old bearing
         // if we are below our threshold for moving.
         if (speed > MOVING_THRESHOLD) {
             mBearing = (float) Math.toDegrees(Math.atan2(latVeolocity, lonVeolocity));
         }
-        location.setBearing(mBearing);
-
-        Bundle extras = new Bundle();
-        extras.putLong("AVERAGED_OF", samples);
-        location.setExtras(extras);
 
-        return location;
+        return new Position(lat, lon, accuracy, timeMs, elapsedRealtimeNanos, samples,
+                mAltTracker != null, (mAltTracker == null) ? 0.0 : mAltTracker.getPosition(),
+                true, speed, mBearing);
     }
 }
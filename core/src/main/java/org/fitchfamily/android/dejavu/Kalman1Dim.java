@@ -146,33 +146,45 @@ class Kalman1Dim {
     /**
      * Predict state.
      *
+     * The filter steps forward TIME_STEP_MS at a time until it is within one step of
+     * the requested time. Rather than iterate, which after a long GPS outage can be
+     * tens of thousands of steps, we apply all n steps at once. Stepping n times is
+     * the same as using the transition F^n = [1 n.t; 0 1] with the process noise of
+     * each step carried forward, which sums to closed forms in n.
+     *
      * @param acceleration Should be 0 unless there's some sort of control input (a gas pedal, for instance).
      * @param timeMillisec The time the prediction is for.
      */
     public void predict(double acceleration, long timeMillisec) {
 
         long delta_t = timeMillisec - mPredTime;
-        while (delta_t > TIME_STEP_MS) {
-            mPredTime = mPredTime + TIME_STEP_MS;
-
-            // x = F.x + G.u
-            mXa = mXa + mXb * mt + acceleration * mt2d2;
-            mXb = mXb + acceleration * mt;
-
-            // P = F.P.F' + Q
-            double Pdt = mPd * mt;
-            double FPFtb = mPb + Pdt;
-            double FPFta = mPa + mt * (mPc + FPFtb);
-            double FPFtc = mPc + Pdt;
-            double FPFtd = mPd;
-
-            mPa = FPFta + mQa;
-            mPb = FPFtb + mQb;
-            mPc = FPFtc + mQc;
-            mPd = FPFtd + mQd;
-
-            delta_t = timeMillisec - mPredTime;
-        }
+        if (delta_t <= TIME_STEP_MS)
+            return;
+
+        // Number of whole steps, leaving at most one step to the requested time.
+        long steps = (delta_t - 1) / TIME_STEP_MS;
+        mPredTime = mPredTime + steps * TIME_STEP_MS;
+
+        double n = (double) steps;
+        double nt = n * mt;                             // Total time stepped
+        double s1 = n * (n - 1.0) / 2.0;                // Sum of j for j = 0..n-1
+        double s2 = (n - 1.0) * n * (2.0 * n - 1.0) / 6.0;  // Sum of j^2 for j = 0..n-1
+
+        // x = F^n.x + G(n).u
+        mXa = mXa + mXb * nt + acceleration * mt2d2 * n * n;
+        mXb = mXb + acceleration * nt;
+
+        // P = F^n.P.F^n' + sum(F^j.Q.F^j') for j = 0..n-1
+        double Pa = mPa + nt * (mPb + mPc) + nt * nt * mPd +
+                n * mQa + mt * (mQb + mQc) * s1 + mt2 * mQd * s2;
+        double Pb = mPb + nt * mPd + n * mQb + mt * mQd * s1;
+        double Pc = mPc + nt * mPd + n * mQc + mt * mQd * s1;
+        double Pd = mPd + n * mQd;
+
+        mPa = Pa;
+        mPb = Pb;
+        mPc = Pc;
+        mPd = Pd;
     }
 
     /**
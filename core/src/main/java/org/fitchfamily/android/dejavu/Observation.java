@@ -22,9 +22,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 10/5/17.
  */
 
-import android.os.SystemClock;
-import android.support.annotation.NonNull;
-
 /**
  * A single observation made of a RF emitter.
  *
@@ -37,6 +34,11 @@ import android.support.annotation.NonNull;
  */
 
 class Observation implements Comparable<Observation> {
+    // Define range of received signal strength to be used for all emitter types.
+    // Basically use the same range of values for LTE and WiFi as GSM defaults to.
+    static final int MAXIMUM_ASU = 31;
+    static final int MINIMUM_ASU = 1;
+
     private final RfIdentification ident;
     private int asu;
     private String note;
@@ -44,15 +46,21 @@ class Observation implements Comparable<Observation> {
     private long mLastUpdateTimeMs;
     private long mElapsedRealtimeNanos;
 
-    Observation(String id, RfEmitter.EmitterType t) {
+    /**
+     * @param id The ID of the emitter
+     * @param t The type of the emitter
+     * @param timeMs The time the observation was made
+     * @param elapsedRealtimeNanos The elapsed realtime the observation was made
+     */
+    Observation(String id, EmitterType t, long timeMs, long elapsedRealtimeNanos) {
         ident = new RfIdentification(id, t);
         note = "";
-        asu = BackendService.MINIMUM_ASU;
-        mLastUpdateTimeMs = System.currentTimeMillis();
-        mElapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+        asu = MINIMUM_ASU;
+        mLastUpdateTimeMs = timeMs;
+        mElapsedRealtimeNanos = elapsedRealtimeNanos;
     }
 
-    public int compareTo(@NonNull Observation o) {
+    public int compareTo(Observation o) {
         int rslt = o.asu - asu;
         if (rslt == 0)
             rslt = ident.compareTo(o.ident);
@@ -83,10 +91,10 @@ class Observation implements Comparable<Observation> {
     }
 
     public void setAsu(int signal) {
-        if (signal > BackendService.MAXIMUM_ASU)
-            asu = BackendService.MAXIMUM_ASU;
-        else if (signal < BackendService.MINIMUM_ASU)
-            asu = BackendService.MINIMUM_ASU;
+        if (signal > MAXIMUM_ASU)
+            asu = MAXIMUM_ASU;
+        else if (signal < MINIMUM_ASU)
+            asu = MINIMUM_ASU;
         else
             asu = signal;
     }
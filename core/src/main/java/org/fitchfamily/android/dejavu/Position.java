@@ -0,0 +1,78 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A position estimate: the filtered GPS position or the position we computed from the
+ * emitters we see.
+ *
+ * This is our own value type so the positioning code does not depend on Android. The
+ * service converts it to and from android.location.Location at its edges.
+ */
+final class Position {
+    /** Latitude in degrees */
+    final double lat;
+    /** Longitude in degrees */
+    final double lon;
+    /** Estimated accuracy (radius) in meters */
+    final float accuracy;
+    /** Time of the estimate */
+    final long timeMs;
+    /** Elapsed realtime of the estimate */
+    final long elapsedRealtimeNanos;
+    /** Number of samples the estimate was made from */
+    final long averagedOf;
+
+    final boolean hasAltitude;
+    /** Altitude in meters, if hasAltitude */
+    final double altitude;
+
+    final boolean hasSpeed;
+    /** Speed in meters per second, if hasSpeed */
+    final float speed;
+    /** Bearing in degrees, if hasSpeed */
+    final float bearing;
+
+    Position(double lat, double lon, float accuracy, long timeMs, long elapsedRealtimeNanos,
+             long averagedOf) {
+        this(lat, lon, accuracy, timeMs, elapsedRealtimeNanos, averagedOf,
+                false, 0.0, false, 0.0f, 0.0f);
+    }
+
+    Position(double lat, double lon, float accuracy, long timeMs, long elapsedRealtimeNanos,
+             long averagedOf, boolean hasAltitude, double altitude,
+             boolean hasSpeed, float speed, float bearing) {
+        this.lat = lat;
+        this.lon = lon;
+        this.accuracy = accuracy;
+        this.timeMs = timeMs;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.averagedOf = averagedOf;
+        this.hasAltitude = hasAltitude;
+        this.altitude = altitude;
+        this.hasSpeed = hasSpeed;
+        this.speed = speed;
+        this.bearing = bearing;
+    }
+
+    @Override
+    public String toString() {
+        return "Position(" + lat + ", " + lon + ", acc=" + accuracy + ", time=" + timeMs + ")";
+    }
+}
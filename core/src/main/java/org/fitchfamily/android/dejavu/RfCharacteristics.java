@@ -0,0 +1,156 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The characteristics of a type of RF emitter: how far it can be seen, how accurate
+ * the GPS must be to learn its coverage, and how quickly we come to trust (or
+ * distrust) it.
+ */
+public class RfCharacteristics {
+    private static final long METERS = 1;
+    private static final long KM = METERS * 1000;
+
+    static final long MINIMUM_TRUST = 0;
+    static final long REQUIRED_TRUST = 48;
+    static final long MAXIMUM_TRUST = 100;
+
+    public final float reqdGpsAccuracy;       // GPS accuracy needed in meters
+    public final float minimumRange;          // Minimum believable coverage radius in meters
+    public final float typicalRange;          // Typical range expected
+    public final float moveDetectDistance;    // Maximum believable coverage radius in meters
+    public final long discoveryTrust;         // Assumed trustiness of a rust an emitter seen for the first time.
+    public final long incrTrust;              // Amount to increase trust
+    public final long decrTrust;              // Amount to decrease trust
+    public final long minCount;               // Minimum number of emitters before we can estimate location
+
+    RfCharacteristics( float gps,
+                       float min,
+                       float typical,
+                       float moveDist,
+                       long newTrust,
+                       long incr,
+                       long decr,
+                       long minC) {
+        reqdGpsAccuracy = gps;
+        minimumRange = min;
+        typicalRange = typical;
+        moveDetectDistance = moveDist;
+        discoveryTrust = newTrust;
+        incrTrust = incr;
+        decrTrust = decr;
+        minCount = minC;
+    }
+
+    /**
+     * @param trust The current trust of an emitter of this type
+     * @return The trust after seeing the emitter where we expected to
+     */
+    long increased(long trust) {
+        return Math.min(trust + incrTrust, MAXIMUM_TRUST);
+    }
+
+    /**
+     * @param trust The current trust of an emitter of this type
+     * @return The trust after not seeing the emitter where we expected to
+     */
+    long decreased(long trust) {
+        return trust - decrTrust;
+    }
+
+    /**
+     * @param trust The current trust of an emitter
+     * @return True if an emitter with this trust can be used to compute a position
+     */
+    static boolean trusted(long trust) {
+        return trust >= REQUIRED_TRUST;
+    }
+
+    /**
+     * Given an emitter type, return the various characteristics we need to know
+     * to model it.
+     *
+     * @param t An emitter type (WLAN_24GHZ, MOBILE, etc.)
+     * @return The characteristics needed to model the emitter
+     */
+    public static RfCharacteristics forType(EmitterType t) {
+        switch (t) {
+            case WLAN_24GHZ:
+                // For 2.4 GHz, indoor range seems to be described as about 46 meters
+                // with outdoor range about 90 meters. Set the minimum range to be about
+                // 3/4 of the indoor range and the typical range somewhere between
+                // the indoor and outdoor ranges.
+                // However we've seem really, really long range detection in rural areas
+                // so base the move distance on that.
+                return new RfCharacteristics(
+                        20 * METERS,        // reqdGpsAccuracy
+                        35 * METERS,        // minimumRange
+                        65 * METERS,       // typicalRange
+                        300 * METERS,       // moveDetectDistance - Seen pretty long detection in very rural areas
+                        0,                  // discoveryTrust
+                        REQUIRED_TRUST/3,   // incrTrust
+                        1,                  // decrTrust
+                        2                   // minCount
+                );
+
+            case WLAN_5GHZ:
+                // For 2.4 GHz, indoor range seems to be described as about 46 meters
+                // with outdoor range about 90 meters. Set the minimum range to be about
+                // 3/4 of the indoor range and the typical range somewhere between
+                // the indoor and outdoor ranges.
+                // However we've seem really, really long range detection in rural areas
+                // so base the move distance on that.
+                return new RfCharacteristics(
+                        10 * METERS,        // reqdGpsAccuracy
+                        15 * METERS,        // minimumRange
+                        25 * METERS,       // typicalRange
+                        100 * METERS,       // moveDetectDistance - Seen pretty long detection in very rural areas
+                        0,                  // discoveryTrust
+                        REQUIRED_TRUST/3,   // incrTrust
+                        1,                  // decrTrust
+                        2                   // minCount
+                );
+
+            case MOBILE:
+                return new RfCharacteristics(
+                        100 * METERS,       // reqdGpsAccuracy
+                        500 * METERS,       // minimumRange
+                        2 * KM,             // typicalRange
+                        100 * KM,           // moveDetectDistance - In the desert towers cover large areas
+                        MAXIMUM_TRUST,      // discoveryTrust
+                        MAXIMUM_TRUST,      // incrTrust
+                        0,                  // decrTrust
+                        1                   // minCount
+                );
+        }
+
+        // Unknown emitter type, just throw out some values that make it unlikely that
+        // we will ever use it (require too accurate a GPS location, never increment trust, etc.).
+        return new RfCharacteristics(
+                2 * METERS,         // reqdGpsAccuracy
+                50 * METERS,        // minimumRange
+                50 * METERS,        // typicalRange
+                100 * METERS,       // moveDetectDistance
+                0,                  // discoveryTrust
+                0,                  // incrTrust
+                1,                  // decrTrust
+                99                  // minCount
+        );
+    }
+}
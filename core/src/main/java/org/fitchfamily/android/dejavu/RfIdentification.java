@@ -0,0 +1,184 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Created by tfitch on 10/4/17.
+ */
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class forms a complete identification for a RF emitter.
+ *
+ * All it has are two fields: A rfID string that must be unique within a type
+ * or class of emitters. And a rtType value that indicates the type of RF
+ * emitter we are dealing with.
+ *
+ * From those two fields we compute a 128 bit key once, at construction. The key
+ * is used for equality, hashing, ordering and as the primary key in the database
+ * so none of those operations need to do any string handling.
+ */
+
+public class RfIdentification implements Comparable<RfIdentification>{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Creating a MessageDigest is expensive compared to using one. So keep one
+     * per thread.
+     */
+    private static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // All Java platforms are required to support MD5
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final String rfId;
+    private final EmitterType rfType;
+    private final long keyHigh;
+    private final long keyLow;
+
+    RfIdentification(String id, EmitterType t) {
+        rfId = id;
+        rfType = t;
+
+        byte[] digest = genDigest(rfType, rfId);
+        keyHigh = toLong(digest, 0);
+        keyLow = toLong(digest, 8);
+    }
+
+    /**
+     * Order by our key, treating it as an unsigned 128 bit number. This gives the
+     * same ordering as comparing the hex strings we used to use as keys.
+     *
+     * @param o The identification to compare with
+     * @return Negative, zero or positive as we are less than, equal or greater than o
+     */
+    public int compareTo(RfIdentification o) {
+        if (keyHigh != o.keyHigh)
+            return compareUnsigned(keyHigh, o.keyHigh);
+        return compareUnsigned(keyLow, o.keyLow);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if ( !(o instanceof RfIdentification))
+            return false;
+
+        RfIdentification that = (RfIdentification)o;
+        return (keyHigh == that.keyHigh) && (keyLow == that.keyLow);
+    }
+
+    public String getRfId() {
+        return rfId;
+    }
+
+    public EmitterType getRfType() {
+        return rfType;
+    }
+
+    /**
+     * The unique ID as a 32 character hex string. This was the database key
+     * prior to version 6 of the database.
+     *
+     * @return String A unique identification string
+     */
+    public String getUniqueId() {
+        char[] hex = new char[32];
+        toHex(keyHigh, hex, 0);
+        toHex(keyLow, hex, 16);
+        return new String(hex);
+    }
+
+    /**
+     * The unique ID in the binary form used as the database key.
+     *
+     * @return A 16 byte big endian copy of our key.
+     */
+    public byte[] getUniqueKey() {
+        byte[] key = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            key[i] = (byte) (keyHigh >>> (56 - 8 * i));
+            key[i + 8] = (byte) (keyLow >>> (56 - 8 * i));
+        }
+        return key;
+    }
+
+    /**
+     * Return a hash code for Android to determine if we are like
+     * some other object. Since we already have a unique key computed
+     * for our database records, use that but fold it into the int
+     * expected by Android.
+     *
+     * @return Int Android hash code
+     */
+    public int hashCode() {
+        return (int) (keyLow ^ (keyLow >>> 32));
+    }
+
+    public String toString() {
+        return "rfId=" + rfId + ", rfType=" + rfType;
+    }
+
+    /**
+     * Generate a unique digest for our RF identification. Using MD5 as it
+     * ought not have collisions but is relatively cheap to compute. Since
+     * we aren't doing cryptography here we need not worry about it being
+     * a secure hash.
+     *
+     * @param rfType The type of emitter
+     * @param rfIdent The ID string unique to the type of emitter
+     * @return byte[] A 16 byte digest of the type and ID
+     */
+    private static byte[] genDigest(EmitterType rfType, String rfIdent) {
+        String hashtext = rfType + ":" + rfIdent;
+        return md5.get().digest(hashtext.getBytes(UTF8));
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long rslt = 0;
+        for (int i = offset; i < offset + 8; i++)
+            rslt = (rslt << 8) | (b[i] & 0xFF);
+        return rslt;
+    }
+
+    private static void toHex(long v, char[] dest, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            dest[offset + i] = HEX_DIGITS[(int) (v & 0x0F)];
+            v >>>= 4;
+        }
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+}
@@ -0,0 +1,130 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A single integer key for a latitude and longitude, so a B-tree index can find the
+ * emitters in an area.
+ *
+ * Latitude and longitude are each scaled to a 24 bit integer (about a meter per step)
+ * and the bits of the two are interleaved to give a Z-order (Morton) key. Points close
+ * together usually have keys close together. In particular every key in a square
+ * "cell" of the Z-order quadtree lies in a single range of keys.
+ *
+ * A bounding box is covered with a few such cells, giving a small set of key ranges
+ * that can each be looked up in the index. The cells cover more than the box, so the
+ * caller must still check the exact latitude and longitude.
+ */
+final class SpatialKey {
+    private static final int BITS = 24;
+    private static final long STEPS = 1L << BITS;
+
+    /**
+     * The most cells (and so key ranges) used to cover a bounding box.
+     */
+    private static final int MAX_CELLS = 16;
+
+    private SpatialKey() {
+    }
+
+    /**
+     * @param lat Latitude in degrees
+     * @param lon Longitude in degrees
+     * @return The spatial key for the location
+     */
+    static long of(double lat, double lon) {
+        return interleave(scaleLon(lon), scaleLat(lat));
+    }
+
+    /**
+     * Find the key ranges covering a bounding box.
+     *
+     * @param bb The bounding box
+     * @return Pairs of inclusive low and high keys, sorted and with adjacent
+     * ranges merged.
+     */
+    static long[] ranges(BoundingBox bb) {
+        long x0 = scaleLon(bb.getWest());
+        long x1 = scaleLon(bb.getEast());
+        long y0 = scaleLat(bb.getSouth());
+        long y1 = scaleLat(bb.getNorth());
+
+        // Use the smallest cells that cover the box with no more than MAX_CELLS.
+        int shift = 0;
+        while ((((x1 >> shift) - (x0 >> shift) + 1) * ((y1 >> shift) - (y0 >> shift) + 1)) > MAX_CELLS)
+            shift++;
+
+        long[] lows = new long[MAX_CELLS];
+        int count = 0;
+        for (long x = x0 >> shift; x <= x1 >> shift; x++) {
+            for (long y = y0 >> shift; y <= y1 >> shift; y++) {
+                lows[count++] = interleave(x << shift, y << shift);
+            }
+        }
+        Arrays.sort(lows, 0, count);
+
+        long size = 1L << (2 * shift);
+        long[] rslt = new long[count * 2];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if ((n > 0) && (rslt[n - 1] + 1 == lows[i])) {
+                rslt[n - 1] = lows[i] + size - 1;
+            } else {
+                rslt[n++] = lows[i];
+                rslt[n++] = lows[i] + size - 1;
+            }
+        }
+        return Arrays.copyOf(rslt, n);
+    }
+
+    private static long scaleLat(double lat) {
+        return scale((lat + 90.0) / 180.0);
+    }
+
+    private static long scaleLon(double lon) {
+        return scale((lon + 180.0) / 360.0);
+    }
+
+    private static long scale(double fraction) {
+        long v = (long) Math.floor(fraction * STEPS);
+        return Math.min(Math.max(v, 0), STEPS - 1);
+    }
+
+    /**
+     * Interleave the bits of two 24 bit values, x in the even bits and y in the odd.
+     */
+    private static long interleave(long x, long y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Spread the low 32 bits of a value out to the even bits of the result.
+     */
+    private static long spread(long v) {
+        v &= 0xffffffffL;
+        v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+        v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+        v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+}
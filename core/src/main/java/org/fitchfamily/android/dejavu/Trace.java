@@ -0,0 +1,330 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recording of the inputs to the processing pipeline: the GPS positions and the
+ * sets of observations, in the order they were processed. Replaying a trace with
+ * the clock set from the recorded times gives the same results as the session it
+ * was recorded in.
+ *
+ * The file is a header followed by records. Each record starts with its type and
+ * the time it was handed to the pipeline, both the wall clock and the elapsed
+ * realtime, stored as the change from the previous record. Times within a record
+ * are stored relative to the record's own time, so nearly all times take a byte
+ * or two. An emitter is written in full (type, ID and note) the first time it
+ * appears and by its index in a table after that.
+ */
+final class Trace {
+    private static final int MAGIC = 0x44565452;     // "DVTR"
+    private static final int VERSION = 1;
+
+    static final int GPS = 1;
+    static final int OBSERVATIONS = 2;
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_SPEED = 2;
+
+    /**
+     * Latitude and longitude are stored as integers in units of 1e-7 degrees,
+     * about a centimeter.
+     */
+    private static final double DEGREE_SCALE = 1.0e7;
+
+    private Trace() {
+    }
+
+    /**
+     * One input to the pipeline.
+     */
+    static final class Record {
+        final int type;
+        /** Wall clock time when the record was handed to the pipeline */
+        final long clockMs;
+        /** Elapsed realtime when the record was handed to the pipeline */
+        final long clockNanos;
+        /** The GPS position, for GPS records */
+        final Position gps;
+        /** The observations, for OBSERVATIONS records */
+        final List<Observation> observations;
+        /** The time the observations were made, for OBSERVATIONS records */
+        final long timeMs;
+
+        private Record(int type, long clockMs, long clockNanos, Position gps,
+                       List<Observation> observations, long timeMs) {
+            this.type = type;
+            this.clockMs = clockMs;
+            this.clockNanos = clockNanos;
+            this.gps = gps;
+            this.observations = observations;
+            this.timeMs = timeMs;
+        }
+    }
+
+    /**
+     * An emitter as written to the trace. The note is part of it as the
+     * pipeline makes decisions on it.
+     */
+    private static final class Emitter {
+        final String id;
+        final EmitterType type;
+        final String note;
+
+        Emitter(String id, EmitterType type, String note) {
+            this.id = id;
+            this.type = type;
+            this.note = (note == null) ? "" : note;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Emitter))
+                return false;
+            Emitter e = (Emitter) o;
+            return (type == e.type) && id.equals(e.id) && note.equals(e.note);
+        }
+
+        @Override
+        public int hashCode() {
+            return (id.hashCode() * 31 + type.hashCode()) * 31 + note.hashCode();
+        }
+    }
+
+    /**
+     * Writes a trace. Not buffered, so give it a buffered stream.
+     */
+    static final class Writer {
+        private final DataOutputStream out;
+        private final Map<Emitter, Integer> emitters = new HashMap<>();
+        private long lastClockMs;
+        private long lastClockNanos;
+        private long records;
+
+        Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+
+        /**
+         * Record a GPS position.
+         *
+         * @param clockMs The wall clock time it is handed to the pipeline
+         * @param clockNanos The elapsed realtime it is handed to the pipeline
+         * @param gps The position
+         */
+        synchronized void gps(long clockMs, long clockNanos, Position gps) throws IOException {
+            header(GPS, clockMs, clockNanos);
+            writeVarLong(gps.timeMs - clockMs);
+            writeVarLong(gps.elapsedRealtimeNanos - clockNanos);
+            out.writeInt((int) Math.round(gps.lat * DEGREE_SCALE));
+            out.writeInt((int) Math.round(gps.lon * DEGREE_SCALE));
+            out.writeFloat(gps.accuracy);
+            int flags = (gps.hasAltitude ? HAS_ALTITUDE : 0) | (gps.hasSpeed ? HAS_SPEED : 0);
+            out.writeByte(flags);
+            if (gps.hasAltitude)
+                out.writeFloat((float) gps.altitude);
+            if (gps.hasSpeed) {
+                out.writeFloat(gps.speed);
+                out.writeFloat(gps.bearing);
+            }
+        }
+
+        /**
+         * Record a set of observations.
+         *
+         * @param clockMs The wall clock time they are handed to the pipeline
+         * @param clockNanos The elapsed realtime they are handed to the pipeline
+         * @param observations The observations
+         * @param timeMs The time the observations were made
+         */
+        synchronized void observations(long clockMs, long clockNanos,
+                                       Collection<Observation> observations,
+                                       long timeMs) throws IOException {
+            header(OBSERVATIONS, clockMs, clockNanos);
+            writeVarLong(timeMs - clockMs);
+            writeVarLong(observations.size());
+            for (Observation o : observations) {
+                RfIdentification ident = o.getIdent();
+                Emitter e = new Emitter(ident.getRfId(), ident.getRfType(), o.getNote());
+                Integer index = emitters.get(e);
+                if (index != null) {
+                    writeVarLong(index);
+                } else {
+                    // The next free index says a new emitter follows.
+                    writeVarLong(emitters.size());
+                    out.writeByte(e.type.ordinal());
+                    out.writeUTF(e.id);
+                    out.writeUTF(e.note);
+                    emitters.put(e, emitters.size());
+                }
+                out.writeByte(o.getAsu());
+                writeVarLong(o.getLastUpdateTimeMs() - timeMs);
+                writeVarLong(o.getElapsedRealtimeNanos() - clockNanos);
+            }
+        }
+
+        synchronized long getRecords() {
+            return records;
+        }
+
+        synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private void header(int type, long clockMs, long clockNanos) throws IOException {
+            out.writeByte(type);
+            writeVarLong(clockMs - lastClockMs);
+            writeVarLong(clockNanos - lastClockNanos);
+            lastClockMs = clockMs;
+            lastClockNanos = clockNanos;
+            records++;
+        }
+
+        /**
+         * Write a signed value, zigzag encoded, seven bits to a byte.
+         */
+        private void writeVarLong(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7fL) != 0) {
+                out.writeByte((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+
+    /**
+     * Reads a trace. Not buffered, so give it a buffered stream.
+     */
+    static final class Reader {
+        private final DataInputStream in;
+        private final List<Emitter> emitters = new ArrayList<>();
+        private long lastClockMs;
+        private long lastClockNanos;
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC)
+                throw new IOException("Not a trace");
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported trace version " + version);
+        }
+
+        /**
+         * @return The next record or null at the end of the trace
+         */
+        Record next() throws IOException {
+            int type = in.read();
+            if (type < 0)
+                return null;
+            long clockMs = lastClockMs + readVarLong();
+            long clockNanos = lastClockNanos + readVarLong();
+            lastClockMs = clockMs;
+            lastClockNanos = clockNanos;
+
+            switch (type) {
+                case GPS:
+                    return new Record(type, clockMs, clockNanos,
+                            readGps(clockMs, clockNanos), null, clockMs);
+
+                case OBSERVATIONS:
+                    long timeMs = clockMs + readVarLong();
+                    int count = (int) readVarLong();
+                    List<Observation> observations = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++)
+                        observations.add(readObservation(timeMs, clockNanos));
+                    return new Record(type, clockMs, clockNanos, null, observations, timeMs);
+
+                default:
+                    throw new IOException("Unknown trace record type " + type);
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        private Position readGps(long clockMs, long clockNanos) throws IOException {
+            long timeMs = clockMs + readVarLong();
+            long elapsedRealtimeNanos = clockNanos + readVarLong();
+            double lat = in.readInt() / DEGREE_SCALE;
+            double lon = in.readInt() / DEGREE_SCALE;
+            float accuracy = in.readFloat();
+            int flags = in.readUnsignedByte();
+            boolean hasAltitude = (flags & HAS_ALTITUDE) != 0;
+            double altitude = hasAltitude ? in.readFloat() : 0.0;
+            boolean hasSpeed = (flags & HAS_SPEED) != 0;
+            float speed = hasSpeed ? in.readFloat() : 0.0f;
+            float bearing = hasSpeed ? in.readFloat() : 0.0f;
+            return new Position(lat, lon, accuracy, timeMs, elapsedRealtimeNanos, 1,
+                    hasAltitude, altitude, hasSpeed, speed, bearing);
+        }
+
+        private Observation readObservation(long timeMs, long clockNanos) throws IOException {
+            int index = (int) readVarLong();
+            Emitter e;
+            if (index < emitters.size()) {
+                e = emitters.get(index);
+            } else if (index == emitters.size()) {
+                int ordinal = in.readUnsignedByte();
+                EmitterType[] types = EmitterType.values();
+                if (ordinal >= types.length)
+                    throw new IOException("Unknown emitter type " + ordinal);
+                e = new Emitter(in.readUTF(), types[ordinal], in.readUTF());
+                emitters.add(e);
+            } else {
+                throw new IOException("Bad emitter index " + index);
+            }
+            int asu = in.readUnsignedByte();
+            long obsTimeMs = timeMs + readVarLong();
+            long obsNanos = clockNanos + readVarLong();
+
+            Observation o = new Observation(e.id, e.type, obsTimeMs, obsNanos);
+            o.setAsu(asu);
+            o.setNote(e.note);
+            return o;
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return (v >>> 1) ^ -(v & 1);
+            }
+            throw new IOException("Bad variable length value");
+        }
+    }
+}
@@ -4,8 +4,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 10/30/17.
  */
 
-import android.location.Location;
-import android.os.Bundle;
 //import android.util.Log;
 
 class WeightedAverage {
@@ -69,8 +67,8 @@ class WeightedAverage {
         mElapsedRealtimeNanos = 0;
     }
 
-    public void add(Location loc) {
-        if (loc == null)
+    public void add(EmitterFix fix) {
+        if (fix == null)
             return;
 
         //
@@ -85,8 +83,7 @@ class WeightedAverage {
         // So we are safe in computing the weight by dividing ASU by Accuracy.
         //
 
-        float asu = loc.getExtras().getInt(RfEmitter.LOC_ASU);
-        double weight = asu/ loc.getAccuracy();
+        double weight = fix.asu / fix.accuracy;
 
         count++;
         //Log.d(TAG,"add() entry: weight="+weight+", count="+count);
@@ -97,44 +94,34 @@ class WeightedAverage {
         // into normal distribution error statistic. We will assume our standard deviation (one
         // sigma) is half of our accuracy.
         //
-        double stdDev = loc.getAccuracy()*BackendService.METER_TO_DEG/2.0;
-        double cosLat = Math.max(BackendService.MIN_COS, Math.cos(Math.toRadians(loc.getLatitude())));
+        double stdDev = fix.accuracy*Geometry.METER_TO_DEG/2.0;
+        double cosLat = Math.max(Geometry.MIN_COS, fix.cosLat);
 
-        latEst.add(loc.getLatitude(),stdDev,weight);
-        lonEst.add(loc.getLongitude(),stdDev*cosLat, weight);
+        latEst.add(fix.lat,stdDev,weight);
+        lonEst.add(fix.lon,stdDev*cosLat, weight);
 
-        timeMs = Math.max(timeMs,loc.getTime());
-        mElapsedRealtimeNanos = Math.max(mElapsedRealtimeNanos,loc.getElapsedRealtimeNanos());
+        timeMs = Math.max(timeMs,fix.timeMs);
+        mElapsedRealtimeNanos = Math.max(mElapsedRealtimeNanos,fix.elapsedRealtimeNanos);
     }
 
-    public Location result() {
+    public Position result() {
         if (count < 1)
             return null;
 
-        final Location location = new Location(BackendService.LOCATION_PROVIDER);
-
-        location.setTime(timeMs);
-        location.setElapsedRealtimeNanos(mElapsedRealtimeNanos);
-
-        location.setLatitude(latEst.getMean());
-        location.setLongitude(lonEst.getMean());
+        double lat = latEst.getMean();
+        double lon = lonEst.getMean();
 
         //
         // Accuracy estimate is in degrees, convert to meters for output.
         // We calculate North-South and East-West independently, convert to a
         // circular radius by finding the length of the diagonal.
         //
-        double sdMetersLat = latEst.getStdDev() * BackendService.DEG_TO_METER;
-        double cosLat = Math.max(BackendService.MIN_COS, Math.cos(Math.toRadians(latEst.getMean())));
-        double sdMetersLon = lonEst.getStdDev() * BackendService.DEG_TO_METER * cosLat;
+        double sdMetersLat = latEst.getStdDev() * Geometry.DEG_TO_METER;
+        double cosLat = Math.max(Geometry.MIN_COS, Math.cos(Math.toRadians(lat)));
+        double sdMetersLon = lonEst.getStdDev() * Geometry.DEG_TO_METER * cosLat;
 
         float acc = (float) Math.max(Math.sqrt((sdMetersLat*sdMetersLat)+(sdMetersLon*sdMetersLon)),MINIMUM_BELIEVABLE_ACCURACY);
-        location.setAccuracy(acc);
-
-        Bundle extras = new Bundle();
-        extras.putLong("AVERAGED_OF", count);
-        location.setExtras(extras);
 
-        return location;
+        return new Position(lat, lon, acc, timeMs, mElapsedRealtimeNanos, count);
     }
 }
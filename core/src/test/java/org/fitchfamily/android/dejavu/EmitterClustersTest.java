@@ -0,0 +1,179 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * EmitterClusters against the grouping it replaced, divideInGroups() and
+ * locationCompatibleWithGroup() in BackendService.
+ */
+public class EmitterClustersTest {
+    // About 11 meters of latitude.
+    private static final double STEP = 0.0001;
+
+    private static EmitterFix fix(double lat, double lon, float radius) {
+        return new EmitterFix(lat, lon, radius, 10, 1, 0, 0);
+    }
+
+    /**
+     * The old algorithm. A group is started from each coverage, then every coverage
+     * in turn is added to each group it is compatible with. Distances are from
+     * Geometry, as in EmitterClusters, so only the grouping is compared.
+     *
+     * @return Every largest group, as the old code returned any one of them.
+     */
+    private static Set<Set<EmitterFix>> oldLargestGroups(Collection<EmitterFix> fixes) {
+        List<Set<EmitterFix>> bins = new ArrayList<>();
+        for (EmitterFix fix : fixes) {
+            Set<EmitterFix> group = new LinkedHashSet<>();
+            group.add(fix);
+            bins.add(group);
+        }
+
+        for (EmitterFix fix : fixes) {
+            for (Set<EmitterFix> group : bins) {
+                if (compatibleWithGroup(fix, group))
+                    group.add(fix);
+            }
+        }
+
+        int largest = 0;
+        for (Set<EmitterFix> group : bins)
+            largest = Math.max(largest, group.size());
+        Set<Set<EmitterFix>> rslt = new HashSet<>();
+        for (Set<EmitterFix> group : bins) {
+            if (group.size() == largest)
+                rslt.add(group);
+        }
+        return rslt;
+    }
+
+    private static boolean compatibleWithGroup(EmitterFix fix, Set<EmitterFix> group) {
+        for (EmitterFix other : group) {
+            double testDistance = Geometry.distance(fix.lat, fix.lon, other.lat, other.lon) -
+                    fix.accuracy - other.accuracy;
+            if (testDistance > 0.0)
+                return false;
+        }
+        return true;
+    }
+
+    private static void assertSameAsOld(List<EmitterFix> fixes) {
+        Set<Set<EmitterFix>> expected = oldLargestGroups(fixes);
+        List<EmitterFix> group = new EmitterClusters(fixes).largestGroup();
+
+        if (fixes.isEmpty()) {
+            assertTrue(group.isEmpty());
+            return;
+        }
+        Set<EmitterFix> actual = new HashSet<>(group);
+        assertEquals("duplicates in group", group.size(), actual.size());
+        assertTrue("group of " + actual.size() + " is not one of the " + expected.size() +
+                " largest old groups", expected.contains(actual));
+    }
+
+    @Test
+    public void noEmitters() {
+        assertSameAsOld(Collections.<EmitterFix>emptyList());
+        assertTrue(new EmitterClusters(Collections.<EmitterFix>emptyList()).largestGroup().isEmpty());
+    }
+
+    @Test
+    public void singleEmitter() {
+        EmitterFix only = fix(47.6, -122.3, 50.0f);
+        assertSameAsOld(Collections.singletonList(only));
+        assertEquals(Collections.singletonList(only),
+                new EmitterClusters(Collections.singletonList(only)).largestGroup());
+    }
+
+    @Test
+    public void outlierDropped() {
+        List<EmitterFix> fixes = Arrays.asList(
+                fix(47.6, -122.3, 50.0f),
+                fix(47.6 + STEP, -122.3, 50.0f),
+                fix(48.6, -122.3, 50.0f),
+                fix(47.6, -122.3 + STEP, 50.0f));
+        assertSameAsOld(fixes);
+        assertEquals(3, new EmitterClusters(fixes).largestGroup().size());
+    }
+
+    @Test
+    public void chainedGroups() {
+        // Each emitter overlaps its neighbors along the chain, but not the ones beyond.
+        List<EmitterFix> fixes = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            fixes.add(fix(47.6 + i * 10 * STEP, -122.3, 60.0f));
+        assertSameAsOld(fixes);
+
+        // Ties go to the group grown from the earliest emitter.
+        assertEquals(fixes.subList(0, 2), new EmitterClusters(fixes).largestGroup());
+    }
+
+    @Test
+    public void chainedGroupsOutOfOrder() {
+        // The two ends of a chain each form a group of three with the two emitters
+        // in the middle, and the ends are not given first.
+        List<EmitterFix> fixes = Arrays.asList(
+                fix(47.6 + 20 * STEP, -122.3, 60.0f),
+                fix(47.6, -122.3, 60.0f),
+                fix(47.6 + 10 * STEP, -122.3, 60.0f),
+                fix(47.6 + 10 * STEP, -122.3 + 2 * STEP, 60.0f));
+        assertSameAsOld(fixes);
+    }
+
+    @Test
+    public void twoClustersLargerWins() {
+        List<EmitterFix> fixes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            fixes.add(fix(47.6 + i * STEP, -122.3, 40.0f));
+        for (int i = 0; i < 5; i++)
+            fixes.add(fix(47.7 + i * STEP, -122.3, 40.0f));
+        Collections.shuffle(fixes, new Random(10));
+        assertSameAsOld(fixes);
+        List<EmitterFix> group = new EmitterClusters(fixes).largestGroup();
+        assertEquals(5, group.size());
+        for (EmitterFix f : group)
+            assertTrue(f.lat >= 47.7);
+    }
+
+    @Test
+    public void acrossAntimeridian() {
+        List<EmitterFix> fixes = Arrays.asList(
+                fix(-16.5, 179.9999, 50.0f),
+                fix(-16.5, -179.9999, 50.0f),
+                fix(-16.5, 179.0, 50.0f));
+        assertSameAsOld(fixes);
+        assertEquals(2, new EmitterClusters(fixes).largestGroup().size());
+    }
+
+    @Test
+    public void randomFixedInputs() {
+        Random random = new Random(10);
+        for (int i = 0; i < 300; i++) {
+            int count = random.nextInt(40);
+            double lat = random.nextDouble() * 140.0 - 70.0;
+            double lon = random.nextDouble() * 360.0 - 180.0;
+            // Spread of the emitters compared to their ranges varies from all
+            // overlapping to mostly separate.
+            double spread = 0.0005 + random.nextDouble() * 0.02;
+            List<EmitterFix> fixes = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                fixes.add(fix(lat + random.nextGaussian() * spread,
+                        lon + random.nextGaussian() * spread,
+                        (float) (20.0 + random.nextDouble() * 480.0)));
+            }
+            assertSameAsOld(fixes);
+        }
+    }
+}
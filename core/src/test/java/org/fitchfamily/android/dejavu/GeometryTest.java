@@ -0,0 +1,126 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Geometry.distance() against the WGS84 ellipsoid distance that Location.distanceTo()
+ * computes, which the Geometry class documentation promises to be within about one
+ * percent of for the distances we use.
+ */
+public class GeometryTest {
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1.0 / 298.257223563;
+    private static final double WGS84_B = WGS84_A * (1.0 - WGS84_F);
+
+    /**
+     * The bound from the class documentation.
+     */
+    private static final double MAX_RELATIVE_ERROR = 0.01;
+
+    /**
+     * Distances between coverage centers that clustering compares, from a few
+     * meters between WLAN access points up to the sum of two mobile cell ranges.
+     */
+    private static final double[] DISTANCES = {5.0, 50.0, 150.0, 500.0, 2000.0, 5000.0, 10000.0};
+
+    private static final double[] LATITUDES = {0.0, 15.0, -30.0, 45.0, -60.0, 70.0, -75.0, 80.0, 85.0};
+
+    /**
+     * Vincenty's inverse formula on the WGS84 ellipsoid, the same iteration that
+     * Location.distanceTo() uses.
+     */
+    private static double vincenty(double lat1, double lon1, double lat2, double lon2) {
+        double L = Math.toRadians(lon2 - lon1);
+        double U1 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(lat1)));
+        double U2 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
+        double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
+
+        double lambda = L;
+        double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+        int iterations = 0;
+        while (true) {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double a = cosU2 * sinLambda;
+            double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(a * a + b * b);
+            if (sinSigma == 0.0)
+                return 0.0;
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1.0 - sinAlpha * sinAlpha;
+            cos2SigmaM = (cos2Alpha == 0.0) ? 0.0 : cosSigma - 2.0 * sinU1 * sinU2 / cos2Alpha;
+            double C = WGS84_F / 16.0 * cos2Alpha * (4.0 + WGS84_F * (4.0 - 3.0 * cos2Alpha));
+            double previous = lambda;
+            lambda = L + (1.0 - C) * WGS84_F * sinAlpha *
+                    (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previous) < 1.0e-12)
+                break;
+            assertTrue("Vincenty did not converge", ++iterations < 200);
+        }
+
+        double uSq = cos2Alpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+        double A = 1.0 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+        double B = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+        double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4.0 * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM) -
+                B / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+        return WGS84_B * A * (sigma - deltaSigma);
+    }
+
+    /**
+     * Move roughly a distance along a bearing, using a sphere. The exact end point
+     * doesn't matter as both distances are measured to it.
+     */
+    private static double[] offset(double lat, double lon, double meters, double bearingDeg) {
+        double bearing = Math.toRadians(bearingDeg);
+        double dLat = meters * Math.cos(bearing) / 111195.0;
+        double dLon = meters * Math.sin(bearing) / (111195.0 * Math.cos(Math.toRadians(lat + dLat / 2.0)));
+        return new double[] {lat + dLat, lon + dLon};
+    }
+
+    @Test
+    public void referenceDistances() {
+        // One degree of latitude at the equator, and of longitude on it.
+        assertEquals(110574.4, vincenty(-0.5, 10.0, 0.5, 10.0), 0.1);
+        assertEquals(111319.5, vincenty(0.0, 10.0, 0.0, 11.0), 0.1);
+    }
+
+    @Test
+    public void withinDocumentedBound() {
+        for (double lat : LATITUDES) {
+            for (double lon : new double[] {-122.3, 0.0, 151.2}) {
+                for (double distance : DISTANCES) {
+                    for (int bearing = 0; bearing < 360; bearing += 30) {
+                        double[] to = offset(lat, lon, distance, bearing);
+                        double expected = vincenty(lat, lon, to[0], to[1]);
+                        double actual = Geometry.distance(lat, lon, to[0], to[1]);
+                        double error = Math.abs(actual - expected) / expected;
+                        assertTrue(String.format("%.0f m at %d degrees from (%f, %f): %.3f m, expected %.3f m",
+                                distance, bearing, lat, lon, actual, expected),
+                                error <= MAX_RELATIVE_ERROR);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void acrossAntimeridian() {
+        double expected = vincenty(-16.5, 179.99, -16.5, -179.99);
+        double actual = Geometry.distance(-16.5, 179.99, -16.5, -179.99);
+        assertEquals(expected, actual, expected * MAX_RELATIVE_ERROR);
+    }
+
+    @Test
+    public void overlapsMatchesDistance() {
+        double[] to = offset(47.6, -122.3, 1000.0, 60.0);
+        double cos1 = Geometry.cosLat(47.6);
+        double cos2 = Geometry.cosLat(to[0]);
+        double d = Geometry.distance(47.6, -122.3, cos1, to[0], to[1], cos2);
+        assertTrue(Geometry.overlaps(47.6, -122.3, cos1, 500.0, to[0], to[1], cos2, d - 500.0 + 0.01));
+        assertFalse(Geometry.overlaps(47.6, -122.3, cos1, 500.0, to[0], to[1], cos2, d - 500.0 - 0.01));
+    }
+}
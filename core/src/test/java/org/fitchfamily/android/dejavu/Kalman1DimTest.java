@@ -0,0 +1,195 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Kalman1Dim.predict() against the filter it replaced, which stepped forward
+ * 150 ms at a time.
+ */
+public class Kalman1DimTest {
+    private static final long TIME_STEP_MS = 150;
+
+    /**
+     * The old filter: the same state and update, with the stepped predict. Done in
+     * 34 digit decimal arithmetic so that rounding over tens of thousands of steps
+     * does not hide differences in the closed form.
+     */
+    private static class SteppedKalman {
+        private static final MathContext MC = MathContext.DECIMAL128;
+        private static final BigDecimal TWO = BigDecimal.valueOf(2);
+        private static final BigDecimal FOUR = BigDecimal.valueOf(4);
+
+        private final BigDecimal mt, mt2, mt2d2, mt3d2, mt4d4;
+        private final BigDecimal mQa, mQb, mQc, mQd;
+        private long mPredTime;
+        private BigDecimal mXa = BigDecimal.ZERO, mXb = BigDecimal.ZERO;
+        private BigDecimal mPa, mPb, mPc, mPd;
+
+        SteppedKalman(double processNoise, long timeMillisec) {
+            mPredTime = timeMillisec;
+            mt = BigDecimal.valueOf(TIME_STEP_MS).divide(BigDecimal.valueOf(1000), MC);
+            mt2 = mt.multiply(mt, MC);
+            mt2d2 = mt2.divide(TWO, MC);
+            mt3d2 = mt2.multiply(mt, MC).divide(TWO, MC);
+            mt4d4 = mt2.multiply(mt2, MC).divide(FOUR, MC);
+            BigDecimal n2 = new BigDecimal(processNoise).pow(2, MC);
+            mQa = n2.multiply(mt4d4, MC);
+            mQb = n2.multiply(mt3d2, MC);
+            mQc = mQb;
+            mQd = n2.multiply(mt2, MC);
+            mPa = mQa;
+            mPb = mQb;
+            mPc = mQc;
+            mPd = mQd;
+        }
+
+        void setState(double position, double velocity, double noise) {
+            mXa = new BigDecimal(position);
+            mXb = new BigDecimal(velocity);
+            BigDecimal n2 = new BigDecimal(noise).pow(2, MC);
+            mPa = n2.multiply(mt4d4, MC);
+            mPb = n2.multiply(mt3d2, MC);
+            mPc = mPb;
+            mPd = n2.multiply(mt2, MC);
+        }
+
+        void predict(double acceleration, long timeMillisec) {
+            BigDecimal a = new BigDecimal(acceleration);
+            long delta_t = timeMillisec - mPredTime;
+            while (delta_t > TIME_STEP_MS) {
+                mPredTime = mPredTime + TIME_STEP_MS;
+
+                mXa = mXa.add(mXb.multiply(mt, MC), MC).add(a.multiply(mt2d2, MC), MC);
+                mXb = mXb.add(a.multiply(mt, MC), MC);
+
+                BigDecimal Pdt = mPd.multiply(mt, MC);
+                BigDecimal FPFtb = mPb.add(Pdt, MC);
+                BigDecimal FPFta = mPa.add(mt.multiply(mPc.add(FPFtb, MC), MC), MC);
+                BigDecimal FPFtc = mPc.add(Pdt, MC);
+
+                mPa = FPFta.add(mQa, MC);
+                mPb = FPFtb.add(mQb, MC);
+                mPc = FPFtc.add(mQc, MC);
+                mPd = mPd.add(mQd, MC);
+
+                delta_t = timeMillisec - mPredTime;
+            }
+        }
+
+        void update(double position, double noise) {
+            BigDecimal r = new BigDecimal(noise).pow(2, MC);
+            BigDecimal y = new BigDecimal(position).subtract(mXa, MC);
+            BigDecimal s = mPa.add(r, MC);
+            BigDecimal Ka = mPa.divide(s, MC);
+            BigDecimal Kb = mPc.divide(s, MC);
+            mXa = mXa.add(Ka.multiply(y, MC), MC);
+            mXb = mXb.add(Kb.multiply(y, MC), MC);
+            BigDecimal Pa = mPa.subtract(Ka.multiply(mPa, MC), MC);
+            BigDecimal Pb = mPb.subtract(Ka.multiply(mPb, MC), MC);
+            BigDecimal Pc = mPc.subtract(Kb.multiply(mPa, MC), MC);
+            BigDecimal Pd = mPd.subtract(Kb.multiply(mPb, MC), MC);
+            mPa = Pa;
+            mPb = Pb;
+            mPc = Pc;
+            mPd = Pd;
+        }
+
+        double getPosition() {
+            return mXa.doubleValue();
+        }
+
+        double getVelocity() {
+            return mXb.doubleValue();
+        }
+
+        double getAccuracy() {
+            return Math.sqrt(mPd.divide(mt2, MC).doubleValue());
+        }
+    }
+
+    private static void assertClose(String what, double expected, double actual) {
+        double tolerance = 1.0e-10 * Math.max(1.0, Math.abs(expected));
+        assertEquals(what, expected, actual, tolerance);
+    }
+
+    /**
+     * Predict both filters to a time then update them with a measurement. The
+     * update brings every part of the predicted covariance into the state.
+     */
+    private static void check(Kalman1Dim filter, SteppedKalman reference,
+                              double acceleration, long timeMs, double position, double noise) {
+        filter.predict(acceleration, timeMs);
+        reference.predict(acceleration, timeMs);
+        assertClose("predicted position at " + timeMs, reference.getPosition(), filter.getPosition());
+        assertClose("predicted velocity at " + timeMs, reference.getVelocity(), filter.getVelocity());
+        assertClose("predicted accuracy at " + timeMs, reference.getAccuracy(), filter.getAccuracy());
+
+        filter.update(position, noise);
+        reference.update(position, noise);
+        assertClose("position at " + timeMs, reference.getPosition(), filter.getPosition());
+        assertClose("velocity at " + timeMs, reference.getVelocity(), filter.getVelocity());
+        assertClose("accuracy at " + timeMs, reference.getAccuracy(), filter.getAccuracy());
+    }
+
+    @Test
+    public void noPredictionWithinOneStep() {
+        Kalman1Dim filter = new Kalman1Dim(1.0, 1000);
+        filter.setState(10.0, 2.0, 3.0);
+        filter.predict(0.0, 1000 + TIME_STEP_MS);
+        assertEquals(10.0, filter.getPosition(), 0.0);
+        assertEquals(2.0, filter.getVelocity(), 0.0);
+    }
+
+    @Test
+    public void matchesSteppedAtStepBoundaries() {
+        // Gaps either side of whole numbers of steps, where the step count changes.
+        long[] gaps = {1, 149, 150, 151, 299, 300, 301, 450, 451, 1000, 1501};
+        for (long gap : gaps) {
+            Kalman1Dim filter = new Kalman1Dim(3.0, 0);
+            SteppedKalman reference = new SteppedKalman(3.0, 0);
+            filter.setState(100.0, 1.5, 5.0);
+            reference.setState(100.0, 1.5, 5.0);
+            check(filter, reference, 0.0, gap, 101.0, 4.0);
+            // The prediction time must be left where the old code left it.
+            check(filter, reference, 0.0, gap + 1000, 102.0, 4.0);
+        }
+    }
+
+    @Test
+    public void matchesSteppedWithAcceleration() {
+        Kalman1Dim filter = new Kalman1Dim(0.5, 5000);
+        SteppedKalman reference = new SteppedKalman(0.5, 5000);
+        filter.setState(-20.0, 0.0, 1.0);
+        reference.setState(-20.0, 0.0, 1.0);
+        check(filter, reference, 0.8, 5000 + 12345, 40.0, 10.0);
+        check(filter, reference, -0.3, 5000 + 30000, 200.0, 10.0);
+    }
+
+    @Test
+    public void matchesSteppedOverLongGaps() {
+        Random random = new Random(20);
+        for (int i = 0; i < 50; i++) {
+            double processNoise = 0.1 + random.nextDouble() * 5.0;
+            long time = random.nextInt(100000);
+            Kalman1Dim filter = new Kalman1Dim(processNoise, time);
+            SteppedKalman reference = new SteppedKalman(processNoise, time);
+            double position = random.nextDouble() * 1000.0;
+            double velocity = random.nextGaussian() * 10.0;
+            filter.setState(position, velocity, 20.0);
+            reference.setState(position, velocity, 20.0);
+
+            // Up to an hour without a fix. The covariance is then large enough that
+            // the update loses digits to cancellation in either filter, and later
+            // cycles differ by that rounding, so only the one cycle is compared.
+            time += random.nextInt(3600 * 1000);
+            check(filter, reference, 0.0, time, position + random.nextGaussian() * 50.0,
+                    5.0 + random.nextDouble() * 20.0);
+        }
+    }
+}
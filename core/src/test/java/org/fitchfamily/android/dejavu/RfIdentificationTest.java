@@ -0,0 +1,68 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Equality, hashing and ordering of the binary emitter key.
+ */
+public class RfIdentificationTest {
+    private static final String MAC = "02:00:00:00:00:01";
+
+    @Test
+    public void equalForSameTypeAndId() {
+        RfIdentification a = new RfIdentification(MAC, EmitterType.WLAN_24GHZ);
+        RfIdentification b = new RfIdentification(MAC, EmitterType.WLAN_24GHZ);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+        assertEquals(a.getUniqueId(), b.getUniqueId());
+    }
+
+    @Test
+    public void differentTypeOrIdNotEqual() {
+        RfIdentification a = new RfIdentification(MAC, EmitterType.WLAN_24GHZ);
+        RfIdentification b = new RfIdentification(MAC, EmitterType.WLAN_5GHZ);
+        RfIdentification c = new RfIdentification("02:00:00:00:00:02", EmitterType.WLAN_24GHZ);
+        assertNotEquals(a, b);
+        assertNotEquals(a, c);
+        assertTrue(a.compareTo(b) != 0);
+        assertTrue(a.compareTo(c) != 0);
+        assertFalse(a.equals(null));
+        assertFalse(a.equals(MAC));
+    }
+
+    @Test
+    public void keyMatchesHexId() {
+        RfIdentification a = new RfIdentification(MAC, EmitterType.WLAN_24GHZ);
+        byte[] key = a.getUniqueKey();
+        assertEquals(16, key.length);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : key)
+            hex.append(String.format("%02x", b & 0xff));
+        assertEquals(a.getUniqueId(), hex.toString());
+    }
+
+    @Test
+    public void orderMatchesHexId() {
+        // The order must be that of the hex strings used as keys before, which
+        // means comparing the key as unsigned.
+        List<RfIdentification> ids = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            ids.add(new RfIdentification(String.format("02:00:00:00:%02x:%02x", i >> 8, i & 0xff),
+                    EmitterType.values()[i % EmitterType.values().length]));
+        Collections.sort(ids);
+        for (int i = 1; i < ids.size(); i++) {
+            RfIdentification prev = ids.get(i - 1);
+            RfIdentification cur = ids.get(i);
+            assertTrue(prev.getUniqueId().compareTo(cur.getUniqueId()) < 0);
+            assertTrue(prev.compareTo(cur) < 0);
+            assertTrue(cur.compareTo(prev) > 0);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The key ranges for a bounding box must include the key of every point in it.
+ */
+public class SpatialKeyTest {
+    private static final int SAMPLES = 40;
+
+    private static BoundingBox box(double south, double west, double north, double east) {
+        BoundingBox bb = new BoundingBox();
+        bb.update(south, west);
+        bb.update(north, east);
+        return bb;
+    }
+
+    private static boolean inRanges(long key, long[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if ((key >= ranges[i]) && (key <= ranges[i + 1]))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check a grid of points over the box, including its edges and corners.
+     */
+    private static void assertCovers(BoundingBox bb) {
+        long[] ranges = SpatialKey.ranges(bb);
+        assertTrue(ranges.length > 0);
+        assertEquals(0, ranges.length % 2);
+        for (int i = 0; i < ranges.length; i += 2) {
+            assertTrue(ranges[i] <= ranges[i + 1]);
+            // Sorted with adjacent ranges merged.
+            if (i > 0)
+                assertTrue(ranges[i] > ranges[i - 1] + 1);
+        }
+
+        for (int i = 0; i <= SAMPLES; i++) {
+            double lat = bb.getSouth() + (bb.getNorth() - bb.getSouth()) * i / SAMPLES;
+            for (int j = 0; j <= SAMPLES; j++) {
+                double lon = bb.getWest() + (bb.getEast() - bb.getWest()) * j / SAMPLES;
+                assertTrue("(" + lat + ", " + lon + ") not covered for " + bb,
+                        inRanges(SpatialKey.of(lat, lon), ranges));
+            }
+        }
+    }
+
+    @Test
+    public void smallBox() {
+        assertCovers(box(47.6, -122.31, 47.61, -122.30));
+    }
+
+    @Test
+    public void singlePoint() {
+        assertCovers(box(47.6, -122.3, 47.6, -122.3));
+    }
+
+    @Test
+    public void boxCrossingEquator() {
+        assertCovers(box(-0.01, 30.0, 0.01, 30.02));
+        assertCovers(box(-1.0, -78.6, 0.5, -77.9));
+    }
+
+    @Test
+    public void boxCrossingPrimeMeridian() {
+        assertCovers(box(51.47, -0.01, 51.49, 0.01));
+        assertCovers(box(5.0, -2.0, 6.0, 1.0));
+    }
+
+    @Test
+    public void boxCrossingEquatorAndPrimeMeridian() {
+        assertCovers(box(-0.001, -0.001, 0.001, 0.001));
+        assertCovers(box(-3.0, -3.0, 2.0, 4.0));
+    }
+
+    @Test
+    public void boxesAtTheEdges() {
+        assertCovers(box(89.9, 179.9, 90.0, 180.0));
+        assertCovers(box(-90.0, -180.0, -89.9, -179.9));
+        assertCovers(box(-90.0, -180.0, 90.0, 180.0));
+    }
+
+    @Test
+    public void manyBoxes() {
+        Random random = new Random(15);
+        for (int i = 0; i < 200; i++) {
+            double lat = random.nextDouble() * 170.0 - 85.0;
+            double lon = random.nextDouble() * 350.0 - 175.0;
+            double size = Math.pow(10.0, -4.0 + random.nextDouble() * 4.0);
+            assertCovers(box(lat, lon, lat + size * random.nextDouble(), lon + size * random.nextDouble()));
+        }
+    }
+
+    @Test
+    public void keysDifferAcrossEquatorAndPrimeMeridian() {
+        assertNotEquals(SpatialKey.of(-0.0001, 0.0), SpatialKey.of(0.0001, 0.0));
+        assertNotEquals(SpatialKey.of(0.0, -0.0001), SpatialKey.of(0.0, 0.0001));
+    }
+}
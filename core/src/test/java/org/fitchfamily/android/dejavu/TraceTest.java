@@ -0,0 +1,122 @@
+package org.fitchfamily.android.dejavu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A trace read back must give the pipeline the same inputs as were written.
+ */
+public class TraceTest {
+    private static final long CLOCK_MS = 1500000000000L;
+    private static final long CLOCK_NANOS = 123456789000L;
+
+    private static Observation observation(String id, EmitterType type, int asu, String note,
+                                           long timeMs, long nanos) {
+        Observation o = new Observation(id, type, timeMs, nanos);
+        o.setAsu(asu);
+        o.setNote(note);
+        return o;
+    }
+
+    private static void assertSameObservation(Observation expected, Observation actual) {
+        assertEquals(expected.getIdent(), actual.getIdent());
+        assertEquals(expected.getIdent().getRfId(), actual.getIdent().getRfId());
+        assertEquals(expected.getAsu(), actual.getAsu());
+        assertEquals(expected.getNote(), actual.getNote());
+        assertEquals(expected.getLastUpdateTimeMs(), actual.getLastUpdateTimeMs());
+        assertEquals(expected.getElapsedRealtimeNanos(), actual.getElapsedRealtimeNanos());
+    }
+
+    private static void assertSamePosition(Position expected, Position actual) {
+        // Stored to 1e-7 degrees.
+        assertEquals(expected.lat, actual.lat, 1.0e-7);
+        assertEquals(expected.lon, actual.lon, 1.0e-7);
+        assertEquals(expected.accuracy, actual.accuracy, 0.0);
+        assertEquals(expected.timeMs, actual.timeMs);
+        assertEquals(expected.elapsedRealtimeNanos, actual.elapsedRealtimeNanos);
+        assertEquals(expected.hasAltitude, actual.hasAltitude);
+        assertEquals(expected.altitude, actual.altitude, 1.0e-3);
+        assertEquals(expected.hasSpeed, actual.hasSpeed);
+        assertEquals(expected.speed, actual.speed, 0.0);
+        assertEquals(expected.bearing, actual.bearing, 0.0);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Position plain = new Position(47.6062095, -122.3320708, 12.5f,
+                CLOCK_MS - 800, CLOCK_NANOS - 800000000L, 1);
+        Position full = new Position(-33.8688197, 151.2092955, 4.0f,
+                CLOCK_MS + 59000, CLOCK_NANOS + 59000000000L, 1,
+                true, 58.25, true, 13.5f, 271.0f);
+        List<Observation> first = Arrays.asList(
+                observation("02:00:00:00:00:01", EmitterType.WLAN_24GHZ, 20, "", CLOCK_MS, CLOCK_NANOS),
+                observation("LTE/310/410/1234/5678", EmitterType.MOBILE, 31, "", CLOCK_MS - 2000, CLOCK_NANOS - 2000000000L),
+                observation("02:00:00:00:00:02", EmitterType.WLAN_5GHZ, 1, "Guest_nomap", CLOCK_MS, CLOCK_NANOS));
+        // The same emitters again, one with a different note, plus a new one.
+        List<Observation> second = Arrays.asList(
+                observation("02:00:00:00:00:01", EmitterType.WLAN_24GHZ, 25, "", CLOCK_MS + 30000, CLOCK_NANOS + 30000000000L),
+                observation("02:00:00:00:00:02", EmitterType.WLAN_5GHZ, 3, "Guest", CLOCK_MS + 30000, CLOCK_NANOS + 30000000000L),
+                observation("02:00:00:00:00:03", EmitterType.WLAN_24GHZ, 10, "", CLOCK_MS + 29000, CLOCK_NANOS + 29000000000L),
+                observation("LTE/310/410/1234/5678", EmitterType.MOBILE, 30, "", CLOCK_MS + 30000, CLOCK_NANOS + 30000000000L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Trace.Writer writer = new Trace.Writer(bytes);
+        writer.gps(CLOCK_MS, CLOCK_NANOS, plain);
+        writer.observations(CLOCK_MS + 10, CLOCK_NANOS + 10000000L, first, CLOCK_MS);
+        writer.observations(CLOCK_MS + 30010, CLOCK_NANOS + 30010000000L, second, CLOCK_MS + 30000);
+        writer.observations(CLOCK_MS + 45000, CLOCK_NANOS + 45000000000L, new ArrayList<Observation>(), CLOCK_MS + 45000);
+        writer.gps(CLOCK_MS + 60000, CLOCK_NANOS + 60000000000L, full);
+        assertEquals(5, writer.getRecords());
+        writer.close();
+
+        Trace.Reader reader = new Trace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+
+        Trace.Record r = reader.next();
+        assertEquals(Trace.GPS, r.type);
+        assertEquals(CLOCK_MS, r.clockMs);
+        assertEquals(CLOCK_NANOS, r.clockNanos);
+        assertSamePosition(plain, r.gps);
+
+        r = reader.next();
+        assertEquals(Trace.OBSERVATIONS, r.type);
+        assertEquals(CLOCK_MS + 10, r.clockMs);
+        assertEquals(CLOCK_NANOS + 10000000L, r.clockNanos);
+        assertEquals(CLOCK_MS, r.timeMs);
+        assertEquals(first.size(), r.observations.size());
+        for (int i = 0; i < first.size(); i++)
+            assertSameObservation(first.get(i), r.observations.get(i));
+
+        r = reader.next();
+        assertEquals(Trace.OBSERVATIONS, r.type);
+        assertEquals(CLOCK_MS + 30000, r.timeMs);
+        assertEquals(second.size(), r.observations.size());
+        for (int i = 0; i < second.size(); i++)
+            assertSameObservation(second.get(i), r.observations.get(i));
+
+        r = reader.next();
+        assertEquals(Trace.OBSERVATIONS, r.type);
+        assertEquals(CLOCK_MS + 45000, r.clockMs);
+        assertTrue(r.observations.isEmpty());
+
+        r = reader.next();
+        assertEquals(Trace.GPS, r.type);
+        assertEquals(CLOCK_NANOS + 60000000000L, r.clockNanos);
+        assertSamePosition(full, r.gps);
+
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new Trace.Reader(new ByteArrayInputStream(new byte[] {'D', 'V', 'T', 'X', 1}));
+    }
+}
@@ -0,0 +1,194 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a synthetic emitter database, and optionally a trace of a drive through
+ * the same area, for measuring the database and cache at the sizes our heaviest
+ * users reach.
+ *
+ * The database is pushed to the phone and the trace replayed against it with
+ *     adb shell dumpsys activity service org.fitchfamily.android.dejavu/.BackendService \
+ *         replay drive.trace rf.db
+ * Generating version 3 of the schema makes the replay time the upgrade as well.
+ */
+public final class Generator {
+    private static final String USAGE =
+            "Options:\n" +
+            "  --count N          Number of emitters (10000)\n" +
+            "  --mix A,B,C        Relative numbers of 2.4 GHz WLAN, 5 GHz WLAN and\n" +
+            "                     mobile emitters (60,30,10)\n" +
+            "  --density N        Emitters per square kilometer (1000)\n" +
+            "  --trusted F        Fraction of emitters trusted enough to use (0.9)\n" +
+            "  --center LAT,LON   Center of the area (47.6,-122.3)\n" +
+            "  --seed N           Random number seed (1)\n" +
+            "  --db FILE          Database to write (rf.db)\n" +
+            "  --version N        Schema version, " + RfDatabaseBuilder.CURRENT_VERSION +
+            " or " + RfDatabaseBuilder.RELEASED_VERSION + " (" + RfDatabaseBuilder.CURRENT_VERSION + ")\n" +
+            "  --no-rtree         Leave out the R*Tree spatial index\n" +
+            "  --trace FILE       Also write a trace of a drive through the area\n" +
+            "  --minutes N        Length of the drive (10)\n" +
+            "  --speed N          Driving speed in meters per second (10)\n";
+
+    private int count = 10000;
+    private double[] mix = {60, 30, 10};
+    private double density = 1000;
+    private double trusted = 0.9;
+    private double centerLat = 47.6;
+    private double centerLon = -122.3;
+    private long seed = 1;
+    private File db = new File("rf.db");
+    private int version = RfDatabaseBuilder.CURRENT_VERSION;
+    private boolean spatialIndex = true;
+    private File trace;
+    private double minutes = 10;
+    private double speed = 10;
+
+    private Generator() {
+    }
+
+    public static void main(String[] args) {
+        Generator g = new Generator();
+        try {
+            g.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            g.run();
+        } catch (IOException | SQLException e) {
+            System.err.println("Failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    private void run() throws IOException, SQLException {
+        long start = System.nanoTime();
+        SyntheticCity city = new SyntheticCity(count, mix, density, trusted,
+                centerLat, centerLon, new Random(seed));
+        System.out.println(String.format(Locale.US, "%d emitters in %.1f km square, made in %d ms",
+                count, city.sideMeters / 1000, (System.nanoTime() - start) / 1000000));
+
+        start = System.nanoTime();
+        RfDatabaseBuilder.write(city, db, version, spatialIndex);
+        System.out.println(String.format(Locale.US, "%s: version %d, %d KB, written in %d ms",
+                db, version, db.length() / 1024, (System.nanoTime() - start) / 1000000));
+
+        if (trace != null) {
+            start = System.nanoTime();
+            // A separate sequence so the drive doesn't change the city.
+            SyntheticDrive drive = new SyntheticDrive(city, speed, new Random(seed + 1));
+            long observations = drive.write(trace, (long) (minutes * 60 * 1000));
+            System.out.println(String.format(Locale.US,
+                    "%s: %d observations, %d KB, written in %d ms",
+                    trace, observations, trace.length() / 1024, (System.nanoTime() - start) / 1000000));
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help"))
+                throw new IllegalArgumentException("Generates a synthetic emitter database.");
+            if (arg.equals("--no-rtree")) {
+                spatialIndex = false;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--count":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "--mix":
+                        mix = numbers(value, 3);
+                        break;
+                    case "--density":
+                        density = Double.parseDouble(value);
+                        break;
+                    case "--trusted":
+                        trusted = Double.parseDouble(value);
+                        break;
+                    case "--center":
+                        double[] center = numbers(value, 2);
+                        centerLat = center[0];
+                        centerLon = center[1];
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--db":
+                        db = new File(value);
+                        break;
+                    case "--version":
+                        version = Integer.parseInt(value);
+                        break;
+                    case "--trace":
+                        trace = new File(value);
+                        break;
+                    case "--minutes":
+                        minutes = Double.parseDouble(value);
+                        break;
+                    case "--speed":
+                        speed = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+            }
+        }
+
+        if (count <= 0)
+            throw new IllegalArgumentException("--count must be positive");
+        if ((mix[0] < 0) || (mix[1] < 0) || (mix[2] < 0) || (mix[0] + mix[1] + mix[2] <= 0))
+            throw new IllegalArgumentException("--mix needs a positive total and no negatives");
+        if (density <= 0)
+            throw new IllegalArgumentException("--density must be positive");
+        if ((trusted < 0) || (trusted > 1))
+            throw new IllegalArgumentException("--trusted must be between 0 and 1");
+        if ((version != RfDatabaseBuilder.CURRENT_VERSION) && (version != RfDatabaseBuilder.RELEASED_VERSION))
+            throw new IllegalArgumentException("--version must be " + RfDatabaseBuilder.CURRENT_VERSION +
+                    " or " + RfDatabaseBuilder.RELEASED_VERSION);
+        if (speed <= 0)
+            throw new IllegalArgumentException("--speed must be positive");
+    }
+
+    private static double[] numbers(String value, int n) {
+        String[] parts = value.split(",");
+        if (parts.length != n)
+            throw new NumberFormatException(value);
+        double[] rslt = new double[n];
+        for (int i = 0; i < n; i++)
+            rslt[i] = Double.parseDouble(parts[i].trim());
+        return rslt;
+    }
+}
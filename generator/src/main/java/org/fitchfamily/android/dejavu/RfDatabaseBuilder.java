@@ -0,0 +1,193 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Writes a city of emitters to a database the app can open, with the schema the
+ * app's Database class creates.
+ *
+ * Besides the current schema (version 8) it can write version 3, the schema of the
+ * last release before the spatial indexes, so the time taken by the upgrade can be
+ * measured. The table layouts here must match the ones Database creates and
+ * upgrades to.
+ */
+final class RfDatabaseBuilder {
+    static final int CURRENT_VERSION = 8;
+    static final int RELEASED_VERSION = 3;
+
+    private static final String TABLE_SAMPLES = "emitters";
+    private static final String TABLE_RTREE = "emitters_rtree";
+    private static final String INDEX_TYPE_ID_ZKEY = "emitters_typeid_zkey";
+
+    private static final int BATCH = 10000;
+
+    private RfDatabaseBuilder() {
+    }
+
+    /**
+     * @param city The emitters
+     * @param file The database file, replaced if it exists
+     * @param version The schema version to write, CURRENT_VERSION or RELEASED_VERSION
+     * @param spatialIndex If true (and version 8) include the R*Tree spatial index
+     */
+    static void write(SyntheticCity city, File file, int version, boolean spatialIndex)
+            throws SQLException {
+        if (file.exists() && !file.delete())
+            throw new SQLException("Can't replace " + file);
+
+        Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            Statement st = db.createStatement();
+            // Nothing to recover if we fail, so skip the journal.
+            st.execute("PRAGMA journal_mode=OFF;");
+            st.execute("PRAGMA synchronous=OFF;");
+            st.execute("CREATE TABLE android_metadata (locale TEXT);");
+            st.execute("INSERT INTO android_metadata VALUES ('en_US');");
+
+            db.setAutoCommit(false);
+            if (version == RELEASED_VERSION)
+                writeVersion3(db, city);
+            else
+                writeVersion8(db, city, spatialIndex);
+            st.execute("PRAGMA user_version=" + version + ";");
+            db.commit();
+            db.setAutoCommit(true);
+            st.execute("PRAGMA journal_mode=DELETE;");
+            st.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void writeVersion3(Connection db, SyntheticCity city) throws SQLException {
+        Statement st = db.createStatement();
+        st.execute("CREATE TABLE " + TABLE_SAMPLES + " (" +
+                "rfHash TEXT PRIMARY KEY, " +
+                "rfID TEXT, " +
+                "rfType TEXT, " +
+                "trust INTEGER, " +
+                "latitude REAL, " +
+                "longitude REAL, " +
+                "radius_ns REAL, " +
+                "radius_ew REAL, " +
+                "note TEXT);");
+        st.close();
+
+        PreparedStatement insert = db.prepareStatement("INSERT INTO " + TABLE_SAMPLES +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        for (int i = 0; i < city.count; i++) {
+            RfIdentification ident = new RfIdentification(city.id(i), city.type(i));
+            insert.setString(1, ident.getUniqueId());
+            bindCommon(insert, city, i);
+            insert.addBatch();
+            if ((i + 1) % BATCH == 0)
+                insert.executeBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+    }
+
+    private static void writeVersion8(Connection db, SyntheticCity city, boolean spatialIndex)
+            throws SQLException {
+        Statement st = db.createStatement();
+        st.execute("CREATE TABLE " + TABLE_SAMPLES + " (" +
+                "rfHash BLOB PRIMARY KEY, " +
+                "rfID TEXT, " +
+                "rfType TEXT, " +
+                "trust INTEGER, " +
+                "latitude REAL, " +
+                "longitude REAL, " +
+                "radius_ns REAL, " +
+                "radius_ew REAL, " +
+                "note TEXT, " +
+                "zkey INTEGER, " +
+                "rfTypeId INTEGER);");
+
+        PreparedStatement insert = db.prepareStatement("INSERT INTO " + TABLE_SAMPLES +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        for (int i = 0; i < city.count; i++) {
+            RfIdentification ident = new RfIdentification(city.id(i), city.type(i));
+            insert.setBytes(1, ident.getUniqueKey());
+            bindCommon(insert, city, i);
+            insert.setLong(10, SpatialKey.of(city.lat(i), city.lon(i)));
+            insert.setInt(11, typeId(city.type(i)));
+            insert.addBatch();
+            if ((i + 1) % BATCH == 0)
+                insert.executeBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+
+        // Indexes are quicker to build once all the rows are in.
+        st.execute("CREATE INDEX " + INDEX_TYPE_ID_ZKEY + " ON " + TABLE_SAMPLES +
+                "(rfTypeId, zkey);");
+
+        if (spatialIndex) {
+            st.execute("CREATE VIRTUAL TABLE " + TABLE_RTREE +
+                    " USING rtree(id, minLat, maxLat, minLon, maxLon);");
+            st.execute("INSERT INTO " + TABLE_RTREE + " SELECT rowid, " +
+                    "latitude, latitude, longitude, longitude FROM " + TABLE_SAMPLES + ";");
+            st.execute("CREATE TRIGGER " + TABLE_RTREE + "_insert AFTER INSERT ON " +
+                    TABLE_SAMPLES + " BEGIN INSERT INTO " + TABLE_RTREE + " VALUES (" +
+                    "new.rowid, new.latitude, new.latitude, new.longitude, new.longitude); END;");
+            st.execute("CREATE TRIGGER " + TABLE_RTREE + "_update AFTER UPDATE OF " +
+                    "latitude, longitude ON " + TABLE_SAMPLES + " BEGIN UPDATE " + TABLE_RTREE +
+                    " SET minLat=new.latitude, maxLat=new.latitude, " +
+                    "minLon=new.longitude, maxLon=new.longitude WHERE id=new.rowid; END;");
+            st.execute("CREATE TRIGGER " + TABLE_RTREE + "_delete AFTER DELETE ON " +
+                    TABLE_SAMPLES + " BEGIN DELETE FROM " + TABLE_RTREE +
+                    " WHERE id=old.rowid; END;");
+        }
+        st.close();
+    }
+
+    private static void bindCommon(PreparedStatement insert, SyntheticCity city, int i)
+            throws SQLException {
+        insert.setString(2, city.id(i));
+        insert.setString(3, city.type(i).toString());
+        insert.setLong(4, city.trust(i));
+        insert.setDouble(5, city.lat(i));
+        insert.setDouble(6, city.lon(i));
+        insert.setDouble(7, city.radiusNs(i));
+        insert.setDouble(8, city.radiusEw(i));
+        insert.setString(9, city.note(i));
+    }
+
+    /**
+     * The values of Database's type id column.
+     */
+    private static int typeId(EmitterType type) {
+        switch (type) {
+            case WLAN_24GHZ:
+                return 1;
+            case WLAN_5GHZ:
+                return 2;
+            case MOBILE:
+                return 3;
+        }
+        return 0;
+    }
+}
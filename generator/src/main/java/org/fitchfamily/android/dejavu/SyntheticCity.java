@@ -0,0 +1,232 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A square city of emitters scattered uniformly at random, held in arrays so a
+ * million of them fit comfortably in memory.
+ *
+ * The emitters are also sorted into a grid of square cells so the ones near a
+ * point can be found quickly when making up scans.
+ */
+final class SyntheticCity {
+    /**
+     * The smallest grid cell, about the typical range of a WLAN.
+     */
+    private static final double MIN_CELL_METERS = 100.0;
+    private static final int MAX_CELLS_PER_SIDE = 2048;
+
+    final int count;
+    final double centerLat;
+    final double centerLon;
+    /** Length of a side of the city in meters */
+    final double sideMeters;
+
+    private final EmitterType[] type;
+    private final double[] lat;
+    private final double[] lon;
+    private final float[] radiusNs;
+    private final float[] radiusEw;
+    private final long[] trust;
+
+    private final double cosLat;
+    private final double cellMeters;
+    private final int cellsPerSide;
+    // Emitter indexes sorted by cell, and where each cell starts in them.
+    private final int[] cellStart;
+    private final int[] members;
+
+    /**
+     * @param count The number of emitters
+     * @param mix The relative number of each type of emitter, by EmitterType ordinal
+     * @param density Emitters per square kilometer
+     * @param trusted The fraction of emitters trusted enough to be used for positions
+     * @param centerLat Latitude of the center of the city
+     * @param centerLon Longitude of the center of the city
+     * @param random Where the randomness comes from
+     */
+    SyntheticCity(int count, double[] mix, double density, double trusted,
+                  double centerLat, double centerLon, Random random) {
+        this.count = count;
+        this.centerLat = centerLat;
+        this.centerLon = centerLon;
+        sideMeters = Math.sqrt(count / density) * 1000.0;
+        cosLat = Geometry.cosLat(centerLat);
+
+        double mixTotal = 0;
+        for (double m : mix)
+            mixTotal += m;
+
+        type = new EmitterType[count];
+        lat = new double[count];
+        lon = new double[count];
+        radiusNs = new float[count];
+        radiusEw = new float[count];
+        trust = new long[count];
+        for (int i = 0; i < count; i++) {
+            type[i] = pickType(mix, mixTotal, random);
+            lat[i] = centerLat + (random.nextDouble() - 0.5) * sideMeters * Geometry.METER_TO_DEG;
+            lon[i] = centerLon + (random.nextDouble() - 0.5) * sideMeters * Geometry.METER_TO_DEG / cosLat;
+
+            RfCharacteristics rfChar = RfCharacteristics.forType(type[i]);
+            radiusNs[i] = radius(rfChar, random);
+            radiusEw[i] = radius(rfChar, random);
+            if (random.nextDouble() < trusted)
+                trust[i] = between(RfCharacteristics.REQUIRED_TRUST, RfCharacteristics.MAXIMUM_TRUST, random);
+            else
+                trust[i] = between(RfCharacteristics.MINIMUM_TRUST + 1, RfCharacteristics.REQUIRED_TRUST - 1, random);
+        }
+
+        // Counting sort of the emitters into the grid.
+        cellMeters = Math.max(MIN_CELL_METERS, sideMeters / MAX_CELLS_PER_SIDE);
+        cellsPerSide = (int) Math.ceil(sideMeters / cellMeters) + 1;
+        cellStart = new int[cellsPerSide * cellsPerSide + 1];
+        int[] cells = new int[count];
+        for (int i = 0; i < count; i++) {
+            cells[i] = cellOf(lat[i], lon[i]);
+            cellStart[cells[i] + 1]++;
+        }
+        for (int c = 0; c < cellsPerSide * cellsPerSide; c++)
+            cellStart[c + 1] += cellStart[c];
+        int[] next = cellStart.clone();
+        members = new int[count];
+        for (int i = 0; i < count; i++)
+            members[next[cells[i]]++] = i;
+    }
+
+    EmitterType type(int i) {
+        return type[i];
+    }
+
+    double lat(int i) {
+        return lat[i];
+    }
+
+    double lon(int i) {
+        return lon[i];
+    }
+
+    float radiusNs(int i) {
+        return radiusNs[i];
+    }
+
+    float radiusEw(int i) {
+        return radiusEw[i];
+    }
+
+    long trust(int i) {
+        return trust[i];
+    }
+
+    /**
+     * @return The ID of an emitter, in the form the service makes them
+     */
+    String id(int i) {
+        if (type[i] == EmitterType.MOBILE)
+            return "LTE/310/260/" + i + "/" + (i % 504) + "/" + (1 + (i / 504) % 65534);
+
+        // Multiplying by an odd number is a bijection, so the MACs are unique
+        // but don't look sequential.
+        long bits = (i * 0x9E3779B97F4A7C15L) & 0xffffffffffL;
+        return String.format(Locale.US, "02:%02x:%02x:%02x:%02x:%02x",
+                (bits >>> 32) & 0xff, (bits >>> 24) & 0xff, (bits >>> 16) & 0xff,
+                (bits >>> 8) & 0xff, bits & 0xff);
+    }
+
+    /**
+     * @return The note (SSID) of an emitter
+     */
+    String note(int i) {
+        if (type[i] == EmitterType.MOBILE)
+            return "";
+        return "net" + (i % 10000);
+    }
+
+    /**
+     * Find the emitters of a type within a distance of a point.
+     *
+     * @param pointLat Latitude of the point
+     * @param pointLon Longitude of the point
+     * @param rfType The type of emitter wanted
+     * @param range The distance in meters
+     * @param out Where to add the indexes of the emitters found
+     */
+    void near(double pointLat, double pointLon, EmitterType rfType, double range, List<Integer> out) {
+        double y = (pointLat - centerLat) * Geometry.DEG_TO_METER + sideMeters / 2;
+        double x = (pointLon - centerLon) * Geometry.DEG_TO_METER * cosLat + sideMeters / 2;
+        int minX = clamp((int) Math.floor((x - range) / cellMeters));
+        int maxX = clamp((int) Math.floor((x + range) / cellMeters));
+        int minY = clamp((int) Math.floor((y - range) / cellMeters));
+        int maxY = clamp((int) Math.floor((y + range) / cellMeters));
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cy = minY; cy <= maxY; cy++) {
+                int cell = cx * cellsPerSide + cy;
+                for (int m = cellStart[cell]; m < cellStart[cell + 1]; m++) {
+                    int i = members[m];
+                    if ((type[i] == rfType) &&
+                            (Geometry.distance(pointLat, pointLon, lat[i], lon[i]) <= range))
+                        out.add(i);
+                }
+            }
+        }
+    }
+
+    private int cellOf(double pointLat, double pointLon) {
+        double y = (pointLat - centerLat) * Geometry.DEG_TO_METER + sideMeters / 2;
+        double x = (pointLon - centerLon) * Geometry.DEG_TO_METER * cosLat + sideMeters / 2;
+        return clamp((int) Math.floor(x / cellMeters)) * cellsPerSide +
+                clamp((int) Math.floor(y / cellMeters));
+    }
+
+    private int clamp(int cell) {
+        return Math.min(Math.max(cell, 0), cellsPerSide - 1);
+    }
+
+    private static EmitterType pickType(double[] mix, double mixTotal, Random random) {
+        double r = random.nextDouble() * mixTotal;
+        EmitterType[] types = EmitterType.values();
+        for (int t = 0; t < mix.length; t++) {
+            r -= mix[t];
+            if ((r < 0) && (mix[t] > 0))
+                return types[t];
+        }
+        // Rounding, take the last type with any share.
+        for (int t = mix.length - 1; t >= 0; t--) {
+            if (mix[t] > 0)
+                return types[t];
+        }
+        return EmitterType.WLAN_24GHZ;
+    }
+
+    /**
+     * A coverage radius between the minimum and typical for the type.
+     */
+    private static float radius(RfCharacteristics rfChar, Random random) {
+        return rfChar.minimumRange +
+                random.nextFloat() * (rfChar.typicalRange - rfChar.minimumRange);
+    }
+
+    private static long between(long min, long max, Random random) {
+        return min + (long) (random.nextDouble() * (max - min + 1));
+    }
+}
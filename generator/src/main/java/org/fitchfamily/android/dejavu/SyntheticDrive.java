@@ -0,0 +1,184 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes up a trace of a drive through a synthetic city, for replaying on a phone
+ * against the database generated for the same city.
+ *
+ * The drive goes in straight lines between random points in the city. Along the
+ * way there is a GPS fix every second and the WLAN and mobile scans come at the
+ * intervals the service asks for them. A scan sees the emitters of its type within
+ * their typical range, with the signal falling off with distance.
+ */
+final class SyntheticDrive {
+    private static final long GPS_INTERVAL_MS = 1000;
+    private static final long WLAN_INTERVAL_MS = 800;
+    private static final long MOBILE_INTERVAL_MS = 1250;
+
+    /**
+     * A phone sees only a handful of mobile towers.
+     */
+    private static final int MAX_TOWERS = 7;
+
+    private static final float GPS_ACCURACY = 8.0f;
+
+    /** The start of the drive, an arbitrary time */
+    private static final long START_MS = 1500000000000L;
+    private static final long START_NANOS = 1000L * 1000000000L;
+
+    private final SyntheticCity city;
+    private final Random random;
+    private final double speed;
+
+    private double lat;
+    private double lon;
+    private double toLat;
+    private double toLon;
+    private float bearing;
+
+    /**
+     * @param city The city to drive through
+     * @param speed Driving speed in meters per second
+     * @param random Where the randomness comes from
+     */
+    SyntheticDrive(SyntheticCity city, double speed, Random random) {
+        this.city = city;
+        this.speed = speed;
+        this.random = random;
+        lat = city.centerLat;
+        lon = city.centerLon;
+        pickDestination();
+    }
+
+    /**
+     * @param file Where to write the trace
+     * @param durationMs How long to drive for
+     * @return The number of observations written
+     */
+    long write(File file, long durationMs) throws IOException {
+        long observations = 0;
+        Trace.Writer trace = new Trace.Writer(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            long nextGps = 0;
+            long nextWlan = 0;
+            long nextMobile = 0;
+            long lastMs = 0;
+            while (true) {
+                long t = Math.min(nextGps, Math.min(nextWlan, nextMobile));
+                if (t > durationMs)
+                    break;
+                move((t - lastMs) / 1000.0);
+                lastMs = t;
+
+                long clockMs = START_MS + t;
+                long clockNanos = START_NANOS + t * 1000000L;
+                if (t == nextGps) {
+                    trace.gps(clockMs, clockNanos, gpsFix(clockMs, clockNanos));
+                    nextGps += GPS_INTERVAL_MS;
+                }
+                if (t == nextWlan) {
+                    List<Observation> scan = scan(EmitterType.WLAN_24GHZ, clockMs, clockNanos);
+                    scan.addAll(scan(EmitterType.WLAN_5GHZ, clockMs, clockNanos));
+                    if (!scan.isEmpty()) {
+                        trace.observations(clockMs, clockNanos, scan, clockMs);
+                        observations += scan.size();
+                    }
+                    nextWlan += WLAN_INTERVAL_MS;
+                }
+                if (t == nextMobile) {
+                    List<Observation> scan = scan(EmitterType.MOBILE, clockMs, clockNanos);
+                    if (scan.size() > MAX_TOWERS) {
+                        Collections.sort(scan);
+                        scan = new ArrayList<>(scan.subList(0, MAX_TOWERS));
+                    }
+                    if (!scan.isEmpty()) {
+                        trace.observations(clockMs, clockNanos, scan, clockMs);
+                        observations += scan.size();
+                    }
+                    nextMobile += MOBILE_INTERVAL_MS;
+                }
+            }
+        } finally {
+            trace.close();
+        }
+        return observations;
+    }
+
+    private Position gpsFix(long clockMs, long clockNanos) {
+        // The fix wanders around the true position by about its accuracy.
+        double errorLat = random.nextGaussian() * GPS_ACCURACY / 2 * Geometry.METER_TO_DEG;
+        double errorLon = random.nextGaussian() * GPS_ACCURACY / 2 * Geometry.METER_TO_DEG /
+                Geometry.cosLat(lat);
+        return new Position(lat + errorLat, lon + errorLon, GPS_ACCURACY, clockMs, clockNanos, 1,
+                false, 0.0, true, (float) speed, bearing);
+    }
+
+    private List<Observation> scan(EmitterType type, long clockMs, long clockNanos) {
+        double range = RfCharacteristics.forType(type).typicalRange;
+        List<Integer> seen = new ArrayList<>();
+        city.near(lat, lon, type, range, seen);
+
+        List<Observation> rslt = new ArrayList<>(seen.size());
+        for (int i : seen) {
+            double d = Geometry.distance(lat, lon, city.lat(i), city.lon(i));
+            Observation o = new Observation(city.id(i), type, clockMs, clockNanos);
+            o.setAsu((int) Math.round(Observation.MAXIMUM_ASU * (1.0 - d / range)));
+            o.setNote(city.note(i));
+            rslt.add(o);
+        }
+        return rslt;
+    }
+
+    private void move(double seconds) {
+        double remaining = speed * seconds;
+        while (remaining > 0) {
+            double d = Geometry.distance(lat, lon, toLat, toLon);
+            if (d <= remaining) {
+                lat = toLat;
+                lon = toLon;
+                remaining -= d;
+                pickDestination();
+            } else {
+                double f = remaining / d;
+                lat += (toLat - lat) * f;
+                lon += (toLon - lon) * f;
+                remaining = 0;
+            }
+        }
+    }
+
+    private void pickDestination() {
+        double half = city.sideMeters / 2 * Geometry.METER_TO_DEG;
+        toLat = city.centerLat + (random.nextDouble() * 2 - 1) * half;
+        toLon = city.centerLon + (random.nextDouble() * 2 - 1) * half / Geometry.cosLat(city.centerLat);
+        double north = toLat - lat;
+        double east = (toLon - lon) * Geometry.cosLat(lat);
+        bearing = (float) ((Math.toDegrees(Math.atan2(east, north)) + 360.0) % 360.0);
+    }
+}